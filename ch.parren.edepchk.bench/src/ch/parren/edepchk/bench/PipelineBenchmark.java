@@ -0,0 +1,314 @@
+package ch.parren.edepchk.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ch.parren.java.lang.New;
+import ch.parren.jdepchk.check.Checker;
+import ch.parren.jdepchk.check.Violation;
+import ch.parren.jdepchk.check.ViolationListener;
+import ch.parren.jdepchk.classes.AbstractClassFilesSet;
+import ch.parren.jdepchk.classes.ClassFile;
+import ch.parren.jdepchk.classes.ClassSet;
+import ch.parren.jdepchk.classes.CombinedClassSetVisitor;
+import ch.parren.jdepchk.extraction.Extractor;
+import ch.parren.jdepchk.extraction.RuleFilesManager;
+import ch.parren.jdepchk.rules.RuleSet;
+import ch.parren.jdepchk.rules.builder.RuleSetBuilder;
+import ch.parren.jdepchk.rules.parser.FileParseException;
+import ch.parren.jdepchk.rules.parser.RuleSetLoader;
+
+/**
+ * Benchmarks the JDepChk pipeline the builder runs for a scope, without
+ * Eclipse: a {@link Checker}, an {@link Extractor}, or both through a
+ * {@link CombinedClassSetVisitor}, over an output folder of
+ * {@link SyntheticClasses}. Reports classes per second and the bytes allocated
+ * per class and per second, averaged over the measured iterations after
+ * warming up.
+ * <p>
+ * Only JDepChk's own work is measured, on class files it reads itself. The
+ * builder's per-class overhead on top of that (reading each file into memory,
+ * indexing its references, hashing it and looking it up in the violation
+ * cache) is not, and neither is placing markers.
+ * <p>
+ * Usage: <code>PipelineBenchmark [--classes n] [--packages n] [--deps n]
+ * [--cross-package percent] [--rule-sets n] [--extra-rules n] [--extract]
+ * [--no-check] [--threads n] [--warmup n] [--iterations n] [--dir path]</code>
+ * <p>
+ * Allocation is measured with the HotSpot-specific
+ * <code>com.sun.management.ThreadMXBean</code>, through reflection, and
+ * reported as unavailable elsewhere. Run with a fixed heap (say,
+ * <code>-Xms1g -Xmx1g</code>) for stable numbers.
+ */
+public final class PipelineBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		final PipelineBenchmark bench = new PipelineBenchmark();
+		final SyntheticClasses gen = bench.classes;
+		for (int i = 0; i < args.length; i++) {
+			final String arg = args[i];
+			if ("--classes".equals(arg))
+				gen.classes = Integer.parseInt(args[++i]);
+			else if ("--packages".equals(arg))
+				gen.packages = Integer.parseInt(args[++i]);
+			else if ("--deps".equals(arg))
+				gen.dependencies = Integer.parseInt(args[++i]);
+			else if ("--cross-package".equals(arg))
+				gen.crossPackagePercent = Integer.parseInt(args[++i]);
+			else if ("--rule-sets".equals(arg))
+				gen.ruleSets = Integer.parseInt(args[++i]);
+			else if ("--extra-rules".equals(arg))
+				gen.extraRules = Integer.parseInt(args[++i]);
+			else if ("--extract".equals(arg))
+				bench.extract = true;
+			else if ("--no-check".equals(arg))
+				bench.check = false;
+			else if ("--threads".equals(arg))
+				bench.threads = Integer.parseInt(args[++i]);
+			else if ("--warmup".equals(arg))
+				bench.warmup = Integer.parseInt(args[++i]);
+			else if ("--iterations".equals(arg))
+				bench.iterations = Integer.parseInt(args[++i]);
+			else if ("--dir".equals(arg))
+				bench.dir = new File(args[++i]);
+			else
+				throw new IllegalArgumentException("Unknown option: " + arg);
+		}
+		bench.run();
+	}
+
+	final SyntheticClasses classes = new SyntheticClasses();
+	boolean check = true;
+	boolean extract = false;
+	int threads = 1;
+	int warmup = 5;
+	int iterations = 10;
+	File dir;
+
+	private final Collection<RuleSet> ruleSets = New.linkedList();
+	private final List<String> classFiles = New.arrayList();
+	private final AtomicInteger violations = new AtomicInteger();
+	private File classesDir;
+	private File localRulesDir;
+	private File globalRulesDir;
+
+	public void run() throws Exception {
+		if (!check && !extract)
+			throw new IllegalArgumentException("Nothing to run with --no-check and without --extract.");
+		if (extract && threads > 1)
+			throw new IllegalArgumentException("Extraction is single-threaded, as in the builder.");
+		setUp();
+		System.out.println("Pipeline: " + (check ? "check" : "") + (check && extract ? "+" : "")
+				+ (extract ? "extract" : "") + ", " + classFiles.size() + " classes, " + classes.packages
+				+ " packages, " + classes.dependencies + " deps/class (" + classes.crossPackagePercent
+				+ "% cross-package), " + ruleSets.size() + " rule set(s), " + threads + " thread(s)");
+
+		for (int i = 0; i < warmup; i++)
+			report("warmup " + (i + 1), iteration());
+		long totalNanos = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < iterations; i++) {
+			final long[] result = iteration();
+			report("iteration " + (i + 1), result);
+			totalNanos += result[0];
+			totalBytes = (totalBytes < 0 || result[1] < 0) ? -1 : totalBytes + result[1];
+		}
+		if (iterations > 0)
+			report("average", new long[] { totalNanos / iterations, totalBytes < 0 ? -1 : totalBytes / iterations });
+	}
+
+	private void setUp() throws IOException {
+		if (null == dir) {
+			dir = File.createTempFile("edepchk-bench", "");
+			dir.delete();
+		}
+		classesDir = new File(dir, "bin");
+		localRulesDir = new File(dir, "rules-local");
+		globalRulesDir = new File(dir, "rules-global");
+		localRulesDir.mkdirs();
+		globalRulesDir.mkdirs();
+		if (!classesDir.exists())
+			classes.writeClasses(classesDir);
+		for (File file : classes.writeRules(new File(dir, "rules"))) {
+			final RuleSetBuilder builder = new RuleSetBuilder(file.getName());
+			try {
+				RuleSetLoader.loadInto(file, builder);
+			} catch (FileParseException e) {
+				throw new IOException(file + ": " + e.cause.getMessage());
+			}
+			ruleSets.add(builder.finish());
+		}
+		collect(classesDir, "");
+	}
+
+	private void collect(File folder, String path) {
+		final File[] files = folder.listFiles();
+		if (null == files)
+			return;
+		for (File file : files)
+			if (file.isDirectory())
+				collect(file, path + file.getName() + "/");
+			else if (file.getName().endsWith(".class"))
+				classFiles.add(path + file.getName());
+	}
+
+	/** Runs the pipeline once; returns the nanos taken and bytes allocated. */
+	private long[] iteration() throws Exception {
+		violations.set(0);
+		final long before = allocatedBytes();
+		final long started = System.nanoTime();
+		final long workerBytes;
+		if (threads > 1)
+			workerBytes = scanInParallel();
+		else {
+			scan();
+			workerBytes = 0;
+		}
+		final long nanos = System.nanoTime() - started;
+		final long ownBytes = allocatedSince(before);
+		return new long[] { nanos, (ownBytes < 0 || workerBytes < 0) ? -1 : ownBytes + workerBytes };
+	}
+
+	/** Runs the checker, the extractor, or both over all class files on this thread. */
+	private void scan() throws IOException {
+		final Checker checker = check ? new Checker(listener, ruleSets) : null;
+		final RuleFilesManager rulesMgr = extract ? new RuleFilesManager(localRulesDir, globalRulesDir, false, true)
+				: null;
+		final Extractor extractor = extract ? new Extractor(rulesMgr) : null;
+
+		final ClassSet.Visitor checkerVisitor = (null == checker) ? null : checker.newClassSetVisitor();
+		final ClassSet.Visitor extractorVisitor = (null == extractor) ? null : extractor.newClassSetVisitor();
+		final ClassSet.Visitor classSetVisitor;
+		if (null == checkerVisitor)
+			classSetVisitor = extractorVisitor;
+		else if (null == extractorVisitor)
+			classSetVisitor = checkerVisitor;
+		else
+			classSetVisitor = new CombinedClassSetVisitor(extractorVisitor, checkerVisitor);
+
+		new ClassFiles(classFiles).accept(classSetVisitor);
+		if (null != rulesMgr)
+			rulesMgr.finish();
+	}
+
+	/**
+	 * Splits the class files into one chunk per thread, each checked by its
+	 * own checker. Returns the bytes allocated by the workers, or -1 if
+	 * unknown.
+	 */
+	private long scanInParallel() throws Exception {
+		final int chunkSize = (classFiles.size() + threads - 1) / threads;
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final Collection<Future<Long>> chunks = New.linkedList();
+			for (int i = 0; i < classFiles.size(); i += chunkSize) {
+				final List<String> chunk = classFiles.subList(i, Math.min(classFiles.size(), i + chunkSize));
+				chunks.add(pool.submit(new Callable<Long>() {
+					@Override public Long call() throws Exception {
+						final long before = allocatedBytes();
+						final Checker checker = new Checker(listener, ruleSets);
+						new ClassFiles(chunk).accept(checker.newClassSetVisitor());
+						return allocatedSince(before);
+					}
+				}));
+			}
+			long allocated = 0;
+			for (Future<Long> chunk : chunks) {
+				final long bytes = chunk.get();
+				allocated = (allocated < 0 || bytes < 0) ? -1 : allocated + bytes;
+			}
+			return allocated;
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private void report(String label, long[] result) {
+		final long nanos = result[0];
+		final long bytes = result[1];
+		final int n = classFiles.size();
+		final StringBuilder b = new StringBuilder(label).append(": ");
+		b.append(nanos / 1000000).append(" ms, ");
+		b.append(Math.round(n * 1e9 / nanos)).append(" classes/s, ");
+		if (bytes < 0)
+			b.append("allocation n/a");
+		else
+			b.append(bytes / n).append(" bytes/class, ").append(Math.round(bytes * 1e9 / nanos / (1024 * 1024)))
+					.append(" MB/s allocated");
+		b.append(", ").append(violations.get()).append(" violations");
+		System.out.println(b);
+	}
+
+	private final ViolationListener listener = new ViolationListener() {
+		@Override public boolean report(Violation v) {
+			violations.incrementAndGet();
+			return true;
+		}
+	};
+
+	/** HotSpot's getThreadAllocatedBytes(long), or null if unavailable. */
+	private static final Method threadAllocatedBytes = threadAllocatedBytesMethod();
+
+	/**
+	 * Looked up by reflection, as com.sun.management is an access-restricted
+	 * package in the JavaSE-1.6 execution environment.
+	 */
+	private static Method threadAllocatedBytesMethod() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		try {
+			final Class<?> hotSpot = Class.forName("com.sun.management.ThreadMXBean");
+			if (!hotSpot.isInstance(threads)
+					|| !(Boolean) hotSpot.getMethod("isThreadAllocatedMemorySupported").invoke(threads)
+					|| !(Boolean) hotSpot.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads))
+				return null;
+			return hotSpot.getMethod("getThreadAllocatedBytes", long.class);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/** Bytes allocated by the current thread so far, or -1 if unknown. */
+	private static long allocatedBytes() {
+		if (null == threadAllocatedBytes)
+			return -1;
+		try {
+			return (Long) threadAllocatedBytes.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread()
+					.getId());
+		} catch (Exception e) {
+			return -1;
+		}
+	}
+
+	private static long allocatedSince(long before) {
+		return (before < 0) ? -1 : allocatedBytes() - before;
+	}
+
+	/** Class files below the classes dir, given by their relative paths. */
+	private final class ClassFiles extends AbstractClassFilesSet<Object> {
+
+		private final Collection<String> paths;
+
+		public ClassFiles(Collection<String> paths) {
+			this.paths = paths;
+		}
+
+		@Override public void accept(Visitor visitor) throws IOException {
+			accept(visitor, null, paths.iterator());
+		}
+
+		@Override protected void visit(Visitor visitor, String className, Object context) throws IOException {
+			acceptClassBytes(visitor, new ClassFile(className, new File(classesDir, className + ".class")));
+		}
+	}
+
+}
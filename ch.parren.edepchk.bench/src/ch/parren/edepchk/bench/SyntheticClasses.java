@@ -0,0 +1,149 @@
+package ch.parren.edepchk.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Random;
+
+import ch.parren.java.lang.New;
+
+/**
+ * Writes an output folder of synthetic class files and the rules to check them
+ * against. Classes are spread evenly over packages and reference a fixed
+ * number of other classes through fields, a share of them in other packages.
+ * Each package is a component of its own, so every cross-package reference is
+ * a violation.
+ * <p>
+ * The class files are written directly rather than compiled, so generating
+ * large trees is fast and needs no compiler. They only have a constant pool
+ * and fields, which is all the checker and extractor look at here.
+ */
+final class SyntheticClasses {
+
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_SUPER = 0x0020;
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_CLASS = 7;
+
+	int classes = 5000;
+	int packages = 50;
+	/** References from each class to other classes. */
+	int dependencies = 10;
+	/** Percentage of references going to classes in other packages. */
+	int crossPackagePercent = 5;
+	int ruleSets = 1;
+	/** Components per rule set that match none of the classes. */
+	int extraRules = 0;
+	long seed = 42;
+
+	/** Writes the class files below classesDir. */
+	public void writeClasses(File classesDir) throws IOException {
+		final Random random = new Random(seed);
+		final int perPackage = (classes + packages - 1) / packages;
+		final int used = (classes + perPackage - 1) / perPackage; // rounding may leave some empty
+		for (int i = 0; i < classes; i++) {
+			final int pkg = i / perPackage;
+			final String[] refs = new String[dependencies];
+			for (int j = 0; j < dependencies; j++) {
+				final boolean cross = used > 1 && random.nextInt(100) < crossPackagePercent;
+				final int refPkg = cross ? (pkg + 1 + random.nextInt(used - 1)) % used : pkg;
+				final int first = refPkg * perPackage;
+				final int count = Math.min(classes, first + perPackage) - first;
+				refs[j] = className(first + random.nextInt(count), perPackage);
+			}
+			final File file = new File(classesDir, className(i, perPackage) + ".class");
+			file.getParentFile().mkdirs();
+			write(file, classBytes(className(i, perPackage), refs));
+		}
+	}
+
+	/** Writes one rules file per rule set to rulesDir and returns them. */
+	public Collection<File> writeRules(File rulesDir) throws IOException {
+		rulesDir.mkdirs();
+		final Collection<File> files = New.arrayList();
+		for (int s = 0; s < ruleSets; s++) {
+			final File file = new File(rulesDir, "rules" + s + ".jdep");
+			final Writer w = new FileWriter(file);
+			try {
+				w.write("lib $default contains java.**\n");
+				for (int p = 0; p < packages; p++)
+					w.write("comp bench.p" + p + ".**\n");
+				for (int x = 0; x < extraRules; x++)
+					w.write("comp bench.x" + s + "_" + x + ".**\n");
+			} finally {
+				w.close();
+			}
+			files.add(file);
+		}
+		return files;
+	}
+
+	private String className(int index, int perPackage) {
+		return "bench/p" + (index / perPackage) + "/C" + index;
+	}
+
+	/** A public class with one field per reference, in Java 6 format. */
+	private byte[] classBytes(String name, String[] refs) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(50);
+
+		// 1: this name, 2: this class, 3: super name, 4: super class,
+		// then per reference: name, class, field name, field descriptor.
+		out.writeShort(5 + 4 * refs.length);
+		utf8(out, name);
+		classRef(out, 1);
+		utf8(out, "java/lang/Object");
+		classRef(out, 3);
+		for (int i = 0; i < refs.length; i++) {
+			utf8(out, refs[i]);
+			classRef(out, 5 + 4 * i);
+			utf8(out, "f" + i);
+			utf8(out, "L" + refs[i] + ";");
+		}
+
+		out.writeShort(ACC_PUBLIC | ACC_SUPER);
+		out.writeShort(2);
+		out.writeShort(4);
+		out.writeShort(0); // interfaces
+		out.writeShort(refs.length);
+		for (int i = 0; i < refs.length; i++) {
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(5 + 4 * i + 2);
+			out.writeShort(5 + 4 * i + 3);
+			out.writeShort(0); // attributes
+		}
+		out.writeShort(0); // methods
+		out.writeShort(0); // attributes
+		out.flush();
+		return bytes.toByteArray();
+	}
+
+	private void utf8(DataOutputStream out, String value) throws IOException {
+		out.writeByte(CONSTANT_UTF8);
+		out.writeUTF(value);
+	}
+
+	private void classRef(DataOutputStream out, int nameIndex) throws IOException {
+		out.writeByte(CONSTANT_CLASS);
+		out.writeShort(nameIndex);
+	}
+
+	private void write(File file, byte[] bytes) throws IOException {
+		final OutputStream out = new FileOutputStream(file);
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+}
@@ -0,0 +1,197 @@
+package ch.parren.edep.core.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceDescription;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jdt.core.IPackageFragment;
+import org.eclipse.jdt.core.JavaCore;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import ch.parren.edepchk.core.Builder;
+
+/**
+ * Builds a workspace of generated projects and reports how long full,
+ * incremental single-file, and rules-change builds take. Each project has
+ * core and ui classes, with every ui class referencing a core class, and two
+ * layered rule sets: one letting the whole project access itself, and one
+ * keeping ui and core apart. So every ui class starts out with one violation.
+ * <p>
+ * The Java builder and edepchk's are run and timed separately, so the
+ * latencies reported for edepchk do not include compiling. Only runs if the
+ * system property <code>edepchk.bench</code> is true, so it stays out of the
+ * regular test runs.
+ * <p>
+ * Sized by the system properties <code>edepchk.bench.projects</code> and
+ * <code>edepchk.bench.classes</code> (per project). The marker counts are
+ * always checked. Latencies are only checked against the limits given in
+ * <code>edepchk.bench.maxFullMillis</code>,
+ * <code>edepchk.bench.maxIncrementalMillis</code>, and
+ * <code>edepchk.bench.maxRulesChangeMillis</code>, if any.
+ */
+public class BuildBenchmark {
+
+	private static final int PROJECTS = Integer.getInteger("edepchk.bench.projects", 3);
+	private static final int CLASSES = Integer.getInteger("edepchk.bench.classes", 100);
+
+	private final List<TestProject> testProjects = new ArrayList<TestProject>();
+	private boolean wasAutoBuilding;
+	private int coreClasses;
+	private int uiClasses;
+
+	@BeforeClass public static void onlyIfAsked() {
+		Assume.assumeTrue(Boolean.getBoolean("edepchk.bench"));
+	}
+
+	@Before public void setUp() throws Exception {
+		wasAutoBuilding = setAutoBuilding(false);
+		coreClasses = Math.max(1, CLASSES / 2);
+		uiClasses = Math.max(1, CLASSES - coreClasses);
+		for (int p = 1; p <= PROJECTS; p++) {
+			final TestProject testProject = new TestProject("Bench-" + p);
+			testProjects.add(testProject);
+			final IProject project = testProject.getProject();
+			createFile(project, "base.jdep", "" //
+					+ "lib $default contains java.**\n" //
+					+ "comp bench.**\n");
+			createFile(project, "layers.jdep", "" //
+					+ "lib $default contains java.**\n" //
+					+ "comp bench.core.**\n" //
+					+ "comp bench.ui.**\n");
+			createFile(project, "edepchk.conf", "" //
+					+ "--classes bin/" //
+					+ " --max-errors " + (2 * uiClasses) //
+					+ " --rule-set base --rules base.jdep" //
+					+ " --rule-set layers --rules layers.jdep");
+
+			final IPackageFragment core = testProject.createPackage("bench.core");
+			for (int i = 0; i < coreClasses; i++)
+				testProject.createType(core, "Core" + i + ".java", "public class Core" + i + " {\n" //
+						+ "  public Core" + ((i + 1) % coreClasses) + " next;\n" //
+						+ "}");
+			final IPackageFragment ui = testProject.createPackage("bench.ui");
+			for (int i = 0; i < uiClasses; i++)
+				testProject.createType(ui, "Ui" + i + ".java", uiSource(i, false));
+		}
+	}
+
+	@After public void tearDown() throws Exception {
+		for (TestProject testProject : testProjects)
+			testProject.dispose();
+		testProjects.clear();
+		setAutoBuilding(wasAutoBuilding);
+	}
+
+	@Test public void buildLatencies() throws Exception {
+		// Activates edepchk on the projects, so the builds below are measured with it.
+		for (TestProject testProject : testProjects)
+			testProject.getProject().build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(PROJECTS * uiClasses, countMarkers());
+
+		long javaFull = 0;
+		long full = 0;
+		for (TestProject testProject : testProjects) {
+			javaFull += compile(testProject.getProject(), IncrementalProjectBuilder.FULL_BUILD);
+			full += check(testProject.getProject(), IncrementalProjectBuilder.FULL_BUILD);
+		}
+		javaFull /= PROJECTS;
+		full /= PROJECTS;
+		assertEquals(PROJECTS * uiClasses, countMarkers());
+
+		// Adds a second violation to one class.
+		final IProject project = testProjects.get(0).getProject();
+		final IFile uiFile = project.getFile("src/bench/ui/Ui0.java");
+		final FileWriter fw = new FileWriter(uiFile.getLocation().toFile());
+		try {
+			fw.write("package bench.ui;\n\n" + uiSource(0, true));
+		} finally {
+			fw.close();
+		}
+		uiFile.refreshLocal(IResource.DEPTH_ZERO, null);
+		final long javaIncremental = compile(project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+		final long incremental = check(project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+		assertEquals(PROJECTS * uiClasses + 1, countMarkers());
+
+		// Lets ui access core in the layered rules, clearing the project's markers.
+		project.getFile("layers.jdep").setContents(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp bench.**\n").getBytes()), true, false, null);
+		final long rulesChange = check(project, IncrementalProjectBuilder.INCREMENTAL_BUILD);
+		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+		assertEquals((PROJECTS - 1) * uiClasses, countMarkers());
+
+		System.out.println("edepchk build benchmark with " + PROJECTS + " project(s) of " + (coreClasses + uiClasses)
+				+ " classes: full build " + full + " ms per project, incremental single-file build " + incremental
+				+ " ms, rules change build " + rulesChange + " ms (Java builder: full build " + javaFull
+				+ " ms per project, incremental single-file build " + javaIncremental + " ms)");
+		assertWithin("edepchk.bench.maxFullMillis", full);
+		assertWithin("edepchk.bench.maxIncrementalMillis", incremental);
+		assertWithin("edepchk.bench.maxRulesChangeMillis", rulesChange);
+	}
+
+	private String uiSource(int i, boolean secondViolation) {
+		return "public class Ui" + i + " {\n" //
+				+ "  public bench.core.Core" + (i % coreClasses) + " core;\n" //
+				+ (secondViolation ? "  public bench.core.Core" + ((i + 1) % coreClasses) + " other;\n" : "") //
+				+ "}";
+	}
+
+	private void createFile(IProject project, String name, String contents) throws CoreException {
+		project.getFile(name).create(new ByteArrayInputStream(contents.getBytes()), true, null);
+	}
+
+	private int countMarkers() throws CoreException {
+		return ResourcesPlugin.getWorkspace().getRoot().findMarkers(Builder.MARKER_TYPE, true,
+				IResource.DEPTH_INFINITE).length;
+	}
+
+	/** Runs just the Java builder; returns the millis taken. */
+	private long compile(IProject project, int kind) throws CoreException {
+		final long started = System.nanoTime();
+		project.build(kind, JavaCore.BUILDER_ID, null, null);
+		return millisSince(started);
+	}
+
+	/** Runs just the edepchk builder; returns the millis taken. */
+	private long check(IProject project, int kind) throws CoreException {
+		final long started = System.nanoTime();
+		project.build(kind, Builder.BUILDER_ID, null, null);
+		return millisSince(started);
+	}
+
+	private long millisSince(long started) {
+		return (System.nanoTime() - started) / 1000000;
+	}
+
+	private void assertWithin(String limitProperty, long millis) {
+		final Integer limit = Integer.getInteger(limitProperty);
+		if (null != limit)
+			assertTrue(limitProperty + " exceeded: " + millis + " ms", millis <= limit);
+	}
+
+	/** Returns the previous setting. */
+	private boolean setAutoBuilding(boolean autoBuilding) throws CoreException {
+		final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		final IWorkspaceDescription description = workspace.getDescription();
+		final boolean was = description.isAutoBuilding();
+		description.setAutoBuilding(autoBuilding);
+		workspace.setDescription(description);
+		return was;
+	}
+
+}
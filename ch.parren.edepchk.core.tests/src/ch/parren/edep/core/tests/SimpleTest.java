@@ -5,13 +5,17 @@ import static org.junit.Assert.*;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.HashSet;
+import java.util.Set;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jdt.core.IPackageFragment;
 import org.junit.After;
 import org.junit.Before;
@@ -71,15 +75,31 @@ public class SimpleTest {
 	}
 
 	@Test public void detectError() throws Exception {
-		final IFile rules = project.getFile("rules.jdep");
-		rules.create(new ByteArrayInputStream(("" //
-				+ "lib $default contains java.**\n" //
-				+ "comp com.example.core.**\n" //
-				+ "comp com.example.ui.**\n" //
-		).getBytes()), true, null);
-		final IFile config = project.getFile("edepchk.conf");
-		config.create(new ByteArrayInputStream("--classes bin/ --rules rules.jdep".getBytes()), true, null);
+		configure("--classes bin/ --rules rules.jdep");
+		assertDetectsErrors();
+	}
+
+	@Test public void detectErrorInParallelScopes() throws Exception {
+		configureTwoScopes("--parallel-scopes 2");
+		assertDetectsErrors();
+	}
+
+	@Test public void detectErrorOnScanThreads() throws Exception {
+		configure("--scan-threads 2 --classes bin/ --rules rules.jdep");
+		assertDetectsErrors();
+	}
+
+	@Test public void detectErrorWithAsyncMarkers() throws Exception {
+		configure("--async-markers --classes bin/ --rules rules.jdep");
+		assertDetectsErrors();
+	}
 
+	@Test public void detectErrorWhileStreamingMarkers() throws Exception {
+		configure("--stream-markers 1 --scan-threads 2 --classes bin/ --rules rules.jdep");
+		assertDetectsErrors();
+	}
+
+	private void assertDetectsErrors() throws Exception {
 		final IPackageFragment core = testProject.createPackage("com.example.core");
 		testProject.createType(core, "Core.java", "public class Core {}");
 		testProject.createType(core, "Core2.java", "public class Core2 {}");
@@ -89,7 +109,7 @@ public class SimpleTest {
 
 		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
 
-		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		build();
 		{
 			final IMarker[] markers = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
 			assertEquals(1, markers.length);
@@ -105,7 +125,7 @@ public class SimpleTest {
 		}
 		uiRes.refreshLocal(IResource.DEPTH_INFINITE, null);
 
-		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		build();
 		{
 			final IMarker[] markers = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
 			assertEquals(2, markers.length);
@@ -114,6 +134,404 @@ public class SimpleTest {
 		}
 	}
 
+	/** Creates the usual rules, keeping core and ui apart, and a config file with the given args. */
+	private void configure(String args) throws Exception {
+		final IFile rules = project.getFile("rules.jdep");
+		rules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream(args.getBytes()), true, null);
+	}
+
+	/**
+	 * Adds a second scope, for a source folder compiled to an output folder
+	 * of its own, so full builds have several scopes to check.
+	 */
+	private void configureTwoScopes(String options) throws Exception {
+		configure(options + " --scope main --classes bin/ --rules rules.jdep" //
+				+ " --scope gen --classes gen/ --rules rules.jdep");
+		final IPackageFragment gen = testProject.createPackage("src-gen", "gen", "com.example.core");
+		testProject.createType(gen, "Generated.java", "public class Generated {}");
+	}
+
+	/** Builds, and waits for any markers placed in the background. */
+	private void build() throws Exception {
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		Job.getJobManager().join(Builder.PLACEMENT_JOB_FAMILY, null);
+	}
+
+	@Test public void restoreSavedState() throws Exception {
+		configure("--classes bin/ --rules rules.jdep");
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		testProject.createType(core, "Core2.java", "public class Core2 {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		final IResource uiRes = testProject.createType(ui, "UI.java",
+				"public class UI extends com.example.core.Core {}").getResource();
+		final IResource ui2Res = testProject.createType(ui, "UI2.java",
+				"public class UI2 extends com.example.core.Core {}").getResource();
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(2, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+
+		reopen();
+
+		// drop a marker behind the builder's back, so only a full build restores it
+		final IMarker[] ui2Markers = ui2Res.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO);
+		assertEquals(1, ui2Markers.length);
+		ui2Markers[0].delete();
+
+		final FileWriter fw = new FileWriter(uiRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.ui;\n\npublic class UI extends com.example.core.Core {\n public com.example.core.Core2 core;\n}");
+		} finally {
+			fw.close();
+		}
+		uiRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(2, uiRes.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO).length);
+		assertEquals(0, ui2Res.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO).length);
+	}
+
+	@Test public void replayCachedViolations() throws Exception {
+		configure("--classes bin/ --rules rules.jdep");
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		final IResource coreRes = testProject.createType(core, "Core.java",
+				"public class Core {\n public int value() { return 1; }\n}").getResource();
+		testProject.createType(core, "Core2.java", "public class Core2 {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI {\n" //
+				+ " public com.example.core.Core2 other;\n" //
+				+ " public int value() { return new com.example.core.Core().value(); }\n" //
+				+ "}");
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		final IMarker[] markers = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
+		assertTrue(markers.length > 1);
+		final Set<String> before = keysOf(markers);
+
+		// the violations now come from the cache in the saved state
+		reopen();
+		for (IMarker marker : project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE))
+			marker.delete();
+
+		// change only the body of the target, so UI is rechecked with unchanged bytes
+		final FileWriter fw = new FileWriter(coreRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.core;\n\npublic class Core {\n public int value() { return 2; }\n}");
+		} finally {
+			fw.close();
+		}
+		coreRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(before, keysOf(project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE)));
+	}
+
+	/** Identifies markers by where they are and what they say. */
+	private Set<String> keysOf(IMarker[] markers) {
+		final Set<String> keys = new HashSet<String>();
+		for (IMarker marker : markers)
+			keys.add(marker.getResource().getName() + ':' + marker.getAttribute(IMarker.CHAR_START, -1) + ':'
+					+ marker.getAttribute(IMarker.MESSAGE, ""));
+		return keys;
+	}
+
+	/** Saves the workspace and reopens the project, so a new builder starts from the saved state. */
+	private void reopen() throws Exception {
+		ResourcesPlugin.getWorkspace().save(true, null);
+		project.close(null);
+		project.open(null);
+	}
+
+	@Test public void touchRulesWithoutChange() throws Exception {
+		configure("--classes bin/ --rules rules.jdep");
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		testProject.createType(core, "Core2.java", "public class Core2 {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		final IResource uiRes = testProject.createType(ui, "UI.java",
+				"public class UI extends com.example.core.Core {}").getResource();
+		final IResource ui2Res = testProject.createType(ui, "UI2.java",
+				"public class UI2 extends com.example.core.Core {}").getResource();
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(2, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+
+		// drop a marker behind the builder's back, so only a full build restores it
+		final IMarker[] ui2Markers = ui2Res.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO);
+		assertEquals(1, ui2Markers.length);
+		ui2Markers[0].delete();
+
+		// as after a checkout, the rules file's timestamp changes but not its contents
+		final IFile rules = project.getFile("rules.jdep");
+		rules.setLocalTimeStamp(rules.getLocalTimeStamp() + 10000);
+
+		final FileWriter fw = new FileWriter(uiRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.ui;\n\npublic class UI extends com.example.core.Core {\n public com.example.core.Core2 core;\n}");
+		} finally {
+			fw.close();
+		}
+		uiRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(2, uiRes.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO).length);
+		assertEquals(0, ui2Res.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_ZERO).length);
+	}
+
+	@Test public void rulesChange() throws Exception {
+		final IFile rules = project.getFile("rules.jdep");
+		rules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream("--classes bin/ --rules rules.jdep".getBytes()), true, null);
+
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI extends com.example.core.Core {}");
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(1, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+
+		// allow the access by merging the components; only the rules file changes
+		rules.setContents(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.**\n" //
+		).getBytes()), true, false, null);
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+	}
+
+	@Test public void nestedScopeRulesChange() throws Exception {
+		project.getFile("outer.jdep").create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.**\n" //
+		).getBytes()), true, null);
+		final IFile innerRules = project.getFile("inner.jdep");
+		innerRules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream(("" //
+				+ "--scope outer --classes bin/ --rules outer.jdep\n" //
+				+ "--scope inner --classes bin/com/example/ui/ --rules inner.jdep\n" //
+		).getBytes()), true, null);
+
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI extends com.example.core.Core {}");
+
+		// the nested folder's classes belong to the outer scope, which allows the access
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+
+		// rechecking the inner scope must not take them over
+		innerRules.setContents(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.ui.**\n" //
+				+ "comp com.example.core.**\n" //
+		).getBytes()), true, false, null);
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+	}
+
+	@Test public void removeClass() throws Exception {
+		final IFile rules = project.getFile("rules.jdep");
+		rules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream("--classes bin/ --rules rules.jdep".getBytes()), true, null);
+
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		final IResource uiRes = testProject.createType(ui, "UI.java", "public class UI {}\n" //
+				+ "class Helper extends com.example.core.Core {}").getResource();
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertEquals(1, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+
+		// remove the violating class, but not its source file
+		final FileWriter fw = new FileWriter(uiRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.ui;\n\npublic class UI {}");
+		} finally {
+			fw.close();
+		}
+		uiRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertFalse(project.getFile("bin/com/example/ui/Helper.class").exists());
+		assertEquals(0, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+	}
+
+	@Test public void recheckDependents() throws Exception {
+		configure("--classes bin/ --rules rules.jdep");
+		assertRechecksDependents();
+	}
+
+	@Test public void recheckDependentsInParallelScopes() throws Exception {
+		configureTwoScopes("--parallel-scopes 2");
+		assertRechecksDependents();
+	}
+
+	@Test public void recheckDependentsOnScanThreads() throws Exception {
+		configure("--scan-threads 2 --classes bin/ --rules rules.jdep");
+		assertRechecksDependents();
+	}
+
+	@Test public void recheckDependentsWithAsyncMarkers() throws Exception {
+		configure("--async-markers --classes bin/ --rules rules.jdep");
+		assertRechecksDependents();
+	}
+
+	@Test public void recheckDependentsWhileStreamingMarkers() throws Exception {
+		configure("--stream-markers 1 --scan-threads 2 --classes bin/ --rules rules.jdep");
+		assertRechecksDependents();
+	}
+
+	private void assertRechecksDependents() throws Exception {
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		final IResource coreRes = testProject.createType(core, "Core.java",
+				"public class Core {\n public int value() { return 1; }\n}").getResource();
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI {\n" //
+				+ " public int value() { return new com.example.core.Core().value(); }\n" //
+				+ "}");
+
+		build();
+		final IMarker[] markers = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
+		assertTrue(markers.length > 0);
+
+		// drop the markers behind the builder's back, so only a recheck of UI restores them
+		for (IMarker marker : markers)
+			marker.delete();
+
+		// change only the body of the target, so UI itself is not recompiled
+		final FileWriter fw = new FileWriter(coreRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.core;\n\npublic class Core {\n public int value() { return 2; }\n}");
+		} finally {
+			fw.close();
+		}
+		coreRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+
+		build();
+		assertEquals(markers.length, project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length);
+	}
+
+	@Test public void summarizeUnmarkedViolations() throws Exception {
+		final IFile rules = project.getFile("rules.jdep");
+		rules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream("--classes bin/ --rules rules.jdep".getBytes()), true, null);
+
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		testProject.createType(core, "Core2.java", "public class Core2 {}");
+		testProject.createType(core, "Core3.java", "public class Core3 {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI {\n" //
+				+ " public com.example.core.Core a;\n" //
+				+ " public com.example.core.Core2 b;\n" //
+				+ " public com.example.core.Core3 c;\n" //
+				+ "}");
+		final IResource otherRes = testProject.createType(ui, "Other.java",
+				"public class Other {\n public int value() { return 1; }\n}").getResource();
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		final int violations = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE).length;
+		assertTrue(violations > 1);
+
+		config.setContents(new ByteArrayInputStream("--max-scope-errors 1 --classes bin/ --rules rules.jdep"
+				.getBytes()), true, false, null);
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		final String summary = "Dependency check of bin/: " + (violations - 1)
+				+ " more violations found but not marked (1 marked).";
+		assertSummary(summary);
+
+		// an incremental build not touching the violations keeps the totals
+		final FileWriter fw = new FileWriter(otherRes.getLocation().toFile());
+		try {
+			fw.write("package com.example.ui;\n\npublic class Other {\n public int value() { return 2; }\n}");
+		} finally {
+			fw.close();
+		}
+		otherRes.refreshLocal(IResource.DEPTH_INFINITE, null);
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		assertSummary(summary);
+	}
+
+	/** Expects one marked violation, and a summary of the others on the project. */
+	private void assertSummary(String message) throws Exception {
+		int errors = 0;
+		IMarker summary = null;
+		for (IMarker marker : project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE))
+			if (IMarker.SEVERITY_WARNING == marker.getAttribute(IMarker.SEVERITY, -1)) {
+				assertNull(summary);
+				summary = marker;
+			} else
+				errors++;
+		assertEquals(1, errors);
+		assertNotNull(summary);
+		assertEquals(project, summary.getResource());
+		assertEquals(message, summary.getAttribute(IMarker.MESSAGE));
+	}
+
+	@Test public void keepMarkersOfUnchangedViolations() throws Exception {
+		final IFile rules = project.getFile("rules.jdep");
+		rules.create(new ByteArrayInputStream(("" //
+				+ "lib $default contains java.**\n" //
+				+ "comp com.example.core.**\n" //
+				+ "comp com.example.ui.**\n" //
+		).getBytes()), true, null);
+		final IFile config = project.getFile("edepchk.conf");
+		config.create(new ByteArrayInputStream("--classes bin/ --rules rules.jdep".getBytes()), true, null);
+
+		final IPackageFragment core = testProject.createPackage("com.example.core");
+		testProject.createType(core, "Core.java", "public class Core {}");
+		testProject.createType(core, "Core2.java", "public class Core2 {}");
+		final IPackageFragment ui = testProject.createPackage("com.example.ui");
+		testProject.createType(ui, "UI.java", "public class UI extends com.example.core.Core {\n" //
+				+ " public com.example.core.Core2 core;\n" //
+				+ "}");
+
+		project.build(IncrementalProjectBuilder.INCREMENTAL_BUILD, null);
+		final IMarker[] before = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
+		assertEquals(2, before.length);
+
+		project.build(IncrementalProjectBuilder.FULL_BUILD, null);
+		final IMarker[] after = project.findMarkers(Builder.MARKER_TYPE, true, IResource.DEPTH_INFINITE);
+		assertEquals(2, after.length);
+		assertEquals(idsOf(before), idsOf(after));
+	}
+
+	private Set<Long> idsOf(IMarker[] markers) {
+		final Set<Long> ids = new HashSet<Long>();
+		for (IMarker marker : markers)
+			ids.add(marker.getId());
+		return ids;
+	}
+
 	@Test public void annotationRules() throws Exception {
 		testProject.addJar(new File("../jdepchk/build/jdepchk.jar"));
 
@@ -35,8 +35,12 @@ public class TestProject {
 	private IPackageFragmentRoot sourceFolder;
 
 	public TestProject() throws CoreException {
+		this("Project-1");
+	}
+
+	public TestProject(String name) throws CoreException {
 		IWorkspaceRoot root = ResourcesPlugin.getWorkspace().getRoot();
-		project = root.getProject("Project-1");
+		project = root.getProject(name);
 		project.create(null);
 		project.open(null);
 
@@ -72,6 +76,21 @@ public class TestProject {
 		return sourceFolder.createPackageFragment(name, false, null);
 	}
 
+	/** Creates a package in a source folder of its own, compiled to the given output folder. */
+	public IPackageFragment createPackage(String sourceFolder, String outputFolder, String name) throws CoreException {
+		IFolder folder = project.getFolder(sourceFolder);
+		folder.create(false, true, null);
+		IPackageFragmentRoot root = javaProject.getPackageFragmentRoot(folder);
+
+		IClasspathEntry[] oldEntries = javaProject.getRawClasspath();
+		IClasspathEntry[] newEntries = new IClasspathEntry[oldEntries.length + 1];
+		System.arraycopy(oldEntries, 0, newEntries, 0, oldEntries.length);
+		newEntries[oldEntries.length] = JavaCore.newSourceEntry(root.getPath(), new IPath[0], project.getFolder(
+				outputFolder).getFullPath());
+		javaProject.setRawClasspath(newEntries, null);
+		return root.createPackageFragment(name, false, null);
+	}
+
 	public IFile createPackageInfo(IPackageFragment pack, String annotations, String imports) throws CoreException {
 		StringBuffer buf = new StringBuffer();
 		buf.append(annotations);
@@ -0,0 +1,71 @@
+package ch.parren.edepchk.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/** In the core bundle's package, as the tests bundle is a fragment of it. */
+public class PathTrieTest {
+
+	@Test public void firstAt() throws Exception {
+		final PathTrie<String> trie = new PathTrie<String>();
+		trie.add("bin", "a");
+		trie.add("bin/", "b");
+		trie.add("bin/gen", "c");
+		assertEquals("a", trie.firstAt("bin"));
+		assertEquals("a", trie.firstAt("bin/"));
+		assertEquals("c", trie.firstAt("bin/gen"));
+		assertEquals("c", trie.firstAt("bin/gen/"));
+		assertNull(trie.firstAt("bi"));
+		assertNull(trie.firstAt("bin/ge"));
+		assertNull(trie.firstAt("bin/gen/x"));
+		assertNull(trie.firstAt("src"));
+		assertNull(trie.firstAt(""));
+	}
+
+	@Test public void pathsBelowAndAbove() throws Exception {
+		final PathTrie<String> trie = new PathTrie<String>();
+		trie.add("out/bin/", "a");
+		trie.add("out/bin/gen", "b");
+
+		assertTrue(trie.hasPathsBelow(""));
+		assertTrue(trie.hasPathsBelow("out"));
+		assertTrue(trie.hasPathsBelow("out/"));
+		assertTrue(trie.hasPathsBelow("out/bin"));
+		assertFalse(trie.hasPathsBelow("out/bin/gen"));
+		assertFalse(trie.hasPathsBelow("out/bin/gen/"));
+		assertFalse(trie.hasPathsBelow("out/bi"));
+		assertFalse(trie.hasPathsBelow("src"));
+
+		assertFalse(trie.hasPathsAbove(""));
+		assertFalse(trie.hasPathsAbove("out"));
+		assertFalse(trie.hasPathsAbove("out/bin"));
+		assertFalse(trie.hasPathsAbove("out/bin/"));
+		assertTrue(trie.hasPathsAbove("out/bin/gen"));
+		assertTrue(trie.hasPathsAbove("out/bin/gen/"));
+		assertTrue(trie.hasPathsAbove("out/bin/gen/x"));
+		assertTrue(trie.hasPathsAbove("out/bin/other"));
+		assertFalse(trie.hasPathsAbove("out/binary/x"));
+		assertFalse(trie.hasPathsAbove("src/x"));
+	}
+
+	@Test public void longestPrefixWith() throws Exception {
+		final PathTrie<String> trie = new PathTrie<String>();
+		trie.add("bin", "a");
+		trie.add("bin/gen/", "a");
+		trie.add("bin/gen/x", "b");
+
+		assertEquals("bin/", trie.longestPrefixWith("bin/C.class", "a"));
+		assertEquals("bin/", trie.longestPrefixWith("bin/p/C.class", "a"));
+		assertEquals("bin/gen/", trie.longestPrefixWith("bin/gen/C.class", "a"));
+		assertEquals("bin/gen/", trie.longestPrefixWith("bin/gen/x/C.class", "a"));
+		assertEquals("bin/gen/", trie.longestPrefixWith("bin/gen/x/", "a"));
+		assertEquals("bin/gen/x/", trie.longestPrefixWith("bin/gen/x/C.class", "b"));
+		// by segment, not by string prefix
+		assertEquals("bin/", trie.longestPrefixWith("bin/generated/C.class", "a"));
+		assertNull(trie.longestPrefixWith("binary/C.class", "a"));
+		assertNull(trie.longestPrefixWith("bin/C.class", "b"));
+		assertNull(trie.longestPrefixWith("src/C.java", "a"));
+	}
+
+}
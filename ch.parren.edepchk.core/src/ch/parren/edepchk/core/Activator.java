@@ -1,9 +1,18 @@
 package ch.parren.edepchk.core;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
@@ -13,10 +22,22 @@ import org.eclipse.core.resources.IResourceChangeEvent;
 import org.eclipse.core.resources.IResourceChangeListener;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.ISaveContext;
+import org.eclipse.core.resources.ISaveParticipant;
 import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.resources.WorkspaceJob;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Platform;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.JavaCore;
+import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 
@@ -24,9 +45,30 @@ import org.osgi.framework.BundleContext;
  * Auto-configures projects to include the EDepChk nature exactly if they have a
  * corresponding config file. Config files are called either "edepchk.conf" or
  * ".edepchk". See {@link Builder} for details on the configuration syntax.
+ * <p>
+ * Projects whose config files were added or removed are reconfigured by a job
+ * shortly after the last such change, all in one workspace operation, so a
+ * bulk import or checkout causes a single rebuild. Explicit builds starting
+ * before the job ran reconfigure the pending projects first, so they see the
+ * right natures; auto-builds leave that to the job. On startup, a background
+ * job looks for projects whose config files and nature disagree, checking the
+ * file system on several threads, and hands just those to the same job.
+ * <p>
+ * Builders keep their state across sessions by saving it along with the
+ * workspace.
  */
 public class Activator implements BundleActivator {
 
+	public static final String PLUGIN_ID = "ch.parren.edepchk.core";
+
+	private static Bundle bundle;
+	private static TypeCache typeCache;
+	/** Builders whose state changed since the workspace was last saved. */
+	private static final Set<Builder> unsaved = new HashSet<Builder>();
+
+	/** How long to wait for more config file changes before reconfiguring. */
+	private static final long CONFIGURE_DELAY = 500;
+
 	private static final String CONFIG_NAMES;
 	static {
 		final StringBuilder b = new StringBuilder(":");
@@ -36,31 +78,131 @@ public class Activator implements BundleActivator {
 	}
 
 	@Override public void start(BundleContext bundleContext) throws Exception {
+		bundle = bundleContext.getBundle();
+		typeCache = new TypeCache();
+		JavaCore.addElementChangedListener(typeCache, ElementChangedEvent.POST_CHANGE);
 		final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		configureJob.setRule(workspace.getRoot());
+		configureJob.setSystem(true);
 		workspace.addResourceChangeListener(resourceListener, //
 				IResourceChangeEvent.POST_CHANGE | IResourceChangeEvent.PRE_BUILD);
-		configureProjects(workspace);
+		workspace.addSaveParticipant(PLUGIN_ID, saveParticipant);
+		startupJob.setSystem(true);
+		startupJob.schedule();
 	}
 
 	@Override public void stop(BundleContext bundleContext) throws Exception {
 		final IWorkspace workspace = ResourcesPlugin.getWorkspace();
+		workspace.removeSaveParticipant(PLUGIN_ID);
 		workspace.removeResourceChangeListener(resourceListener);
+		startupJob.cancel();
+		configureJob.cancel();
+		JavaCore.removeElementChangedListener(typeCache);
+		typeCache = null;
+		bundle = null;
 	}
 
-	private IResourceChangeListener resourceListener = new IResourceChangeListener() {
+	/** Where we keep per-workspace caches across sessions. */
+	static IPath stateLocation() {
+		return Platform.getStateLocation(bundle);
+	}
+
+	static TypeCache typeCache() {
+		return typeCache;
+	}
+
+	/**
+	 * Whether a tracing option like "/debug/buildStats" is turned on, along
+	 * with debugging of the plug-in as a whole.
+	 */
+	static boolean isTracing(String option) {
+		return Platform.inDebugMode() && isDebugOptionOn("/debug") && isDebugOptionOn(option);
+	}
+
+	private static boolean isDebugOptionOn(String option) {
+		return "true".equalsIgnoreCase(Platform.getDebugOption(PLUGIN_ID + option));
+	}
+
+	static void log(IStatus status) {
+		Platform.getLog(bundle).log(status);
+	}
 
-		private final Set<IProject> pending = new HashSet<IProject>();
+	/** Has the builder save its state the next time the workspace is saved. */
+	static void stateChanged(Builder builder) {
+		synchronized (unsaved) {
+			unsaved.add(builder);
+		}
+	}
+
+	private final ISaveParticipant saveParticipant = new ISaveParticipant() {
+
+		@Override public void prepareToSave(ISaveContext context) throws CoreException {}
+
+		@Override public void saving(ISaveContext context) throws CoreException {
+			final Collection<Builder> builders = new ArrayList<Builder>();
+			synchronized (unsaved) {
+				for (Iterator<Builder> iter = unsaved.iterator(); iter.hasNext();) {
+					final Builder builder = iter.next();
+					if (ISaveContext.PROJECT_SAVE != context.getKind()
+							|| builder.getProject().equals(context.getProject())) {
+						builders.add(builder);
+						iter.remove();
+					}
+				}
+			}
+			for (Builder builder : builders)
+				builder.saveState();
+		}
+
+		@Override public void doneSaving(ISaveContext context) {}
+
+		@Override public void rollback(ISaveContext context) {}
+
+	};
+
+	/** Projects whose config files were added or removed, not yet reconfigured. */
+	private final Set<IProject> pending = new HashSet<IProject>();
+
+	private final Job configureJob = new WorkspaceJob("Configuring dependency checks") {
+		@Override public IStatus runInWorkspace(IProgressMonitor monitor) throws CoreException {
+			configurePending();
+			return Status.OK_STATUS;
+		}
+	};
+
+	private final Job startupJob = new Job("Finding projects to check dependencies in") {
+		@Override protected IStatus run(IProgressMonitor monitor) {
+			try {
+				if (findMisconfiguredProjects(ResourcesPlugin.getWorkspace(), monitor))
+					configureJob.schedule();
+				return Status.OK_STATUS;
+			} catch (InterruptedException e) {
+				return Status.CANCEL_STATUS;
+			}
+		}
+	};
+
+	private IResourceChangeListener resourceListener = new IResourceChangeListener() {
 
 		@Override public void resourceChanged(IResourceChangeEvent event) {
 			try {
 				switch (event.getType()) {
 				case IResourceChangeEvent.POST_CHANGE:
 					event.getDelta().accept(visitor);
+					final boolean changed;
+					synchronized (pending) {
+						changed = !pending.isEmpty();
+					}
+					if (changed)
+						scheduleConfiguration();
 					break;
 				case IResourceChangeEvent.PRE_BUILD:
-					for (IProject p : pending)
-						configureProject(p);
-					pending.clear();
+					// Auto-builds follow every change, so leave them to the job.
+					if (IncrementalProjectBuilder.AUTO_BUILD == event.getBuildKind())
+						break;
+					// Already within the build's workspace operation.
+					configureJob.cancel();
+					configurePending();
 					break;
 				}
 			} catch (CoreException e) {
@@ -77,7 +219,9 @@ public class Activator implements BundleActivator {
 					if (res instanceof IFile) {
 						final IPath path = res.getProjectRelativePath();
 						if (path.segmentCount() == 1 && CONFIG_NAMES.contains(path.segment(0)))
-							pending.add(res.getProject());
+							synchronized (pending) {
+								pending.add(res.getProject());
+							}
 					}
 					break;
 				}
@@ -87,15 +231,78 @@ public class Activator implements BundleActivator {
 
 	};
 
-	private void configureProjects(IWorkspace workspace) throws CoreException {
-		for (IProject project : workspace.getRoot().getProjects())
+	/** Restarts the delay, so a burst of changes is handled once. */
+	private void scheduleConfiguration() {
+		if (configureJob.getState() != Job.RUNNING)
+			configureJob.cancel();
+		configureJob.schedule(CONFIGURE_DELAY);
+	}
+
+	private void configurePending() throws CoreException {
+		final Collection<IProject> projects;
+		synchronized (pending) {
+			projects = new ArrayList<IProject>(pending);
+			pending.clear();
+		}
+		for (IProject project : projects)
 			configureProject(project);
 	}
 
+	/**
+	 * Adds the open projects whose config files on disk disagree with their
+	 * nature to the pending ones, checking them concurrently. Returns whether
+	 * it found any.
+	 */
+	private boolean findMisconfiguredProjects(IWorkspace workspace, final IProgressMonitor monitor)
+			throws InterruptedException {
+		final IProject[] projects = workspace.getRoot().getProjects();
+		final int threads = Math.max(1, Math.min(projects.length, Runtime.getRuntime().availableProcessors()));
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			final Collection<Future<Object>> checks = new ArrayList<Future<Object>>(projects.length);
+			for (final IProject project : projects)
+				checks.add(pool.submit(new Callable<Object>() {
+					@Override public Object call() throws Exception {
+						if (!monitor.isCanceled() && isMisconfigured(project))
+							synchronized (pending) {
+								pending.add(project);
+							}
+						return null;
+					}
+				}));
+			for (Future<Object> check : checks)
+				try {
+					check.get();
+				} catch (ExecutionException e) {
+					log(new Status(IStatus.WARNING, PLUGIN_ID, "Cannot check configuration of project", e.getCause()));
+				}
+		} finally {
+			pool.shutdownNow();
+		}
+		synchronized (pending) {
+			return !pending.isEmpty();
+		}
+	}
+
+	/** Only reads the nature, and whether config files exist on disk. */
+	private boolean isMisconfigured(IProject project) throws CoreException {
+		if (!project.isOpen())
+			return false;
+		final IPath location = project.getLocation();
+		if (null == location)
+			return false;
+		boolean hasConfig = false;
+		for (String fileName : Builder.CONFIG_NAMES)
+			if (new File(location.toFile(), fileName).isFile())
+				hasConfig = true;
+		return hasConfig != project.hasNature(Nature.NATURE_ID);
+	}
+
 	private void configureProject(IProject project) throws CoreException {
 		if (!project.isOpen())
 			return;
-		project.refreshLocal(IResource.DEPTH_ZERO, null);
+		// Also picks up config files added while the workspace was not running.
+		project.refreshLocal(IResource.DEPTH_ONE, null);
 		final IProjectDescription desc = project.getDescription();
 		final boolean hasNature = desc.hasNature(Nature.NATURE_ID);
 		final boolean hasConfig = hasConfig(project);
@@ -0,0 +1,94 @@
+package ch.parren.edepchk.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Times and counts of what a single build did, by phase. Phases may overlap
+ * (type lookups and searches happen while placing markers, for instance) and
+ * are summed over all the threads working on them. Thread-safe.
+ */
+final class BuildStats {
+
+	static final int CONFIG = 0;
+	static final int VISIT = 1;
+	static final int CHECK = 2;
+	static final int EXTRACT = 3;
+	static final int TYPE_LOOKUP = 4;
+	static final int SEARCH = 5;
+	static final int MARKERS = 6;
+	private static final String[] PHASES = { "config", "visit", "check", "extract", "typeLookup", "search",
+			"markers" };
+
+	static final int CLASSES_SCANNED = 0;
+	static final int CLASSES_CACHED = 1;
+	static final int VIOLATIONS = 2;
+	static final int TYPE_LOOKUPS = 3;
+	static final int SEARCHES = 4;
+	static final int MARKERS_CREATED = 5;
+	static final int MARKERS_UPDATED = 6;
+	static final int MARKERS_DELETED = 7;
+	private static final String[] COUNTS = { "classesScanned", "classesCached", "violations", "typeLookups",
+			"searches", "markersCreated", "markersUpdated", "markersDeleted" };
+
+	private final String project;
+	private final long started = System.nanoTime();
+	private final AtomicLongArray nanos = new AtomicLongArray(PHASES.length);
+	private final AtomicLongArray counts = new AtomicLongArray(COUNTS.length);
+	private int iterations = 0;
+
+	public BuildStats(String project) {
+		this.project = project;
+	}
+
+	/** Returns a start time to pass to {@link #stop(int, long)}. */
+	public long start() {
+		return System.nanoTime();
+	}
+
+	public void stop(int phase, long startedAt) {
+		nanos.addAndGet(phase, System.nanoTime() - startedAt);
+	}
+
+	public void count(int counter) {
+		counts.incrementAndGet(counter);
+	}
+
+	public void count(int counter, long n) {
+		counts.addAndGet(counter, n);
+	}
+
+	public void iterated() {
+		iterations++;
+	}
+
+	@Override public String toString() {
+		final StringBuilder b = new StringBuilder("edepchk build of ").append(project).append(" took ").append(
+				millis(System.nanoTime() - started)).append(" ms in ").append(iterations).append(" iteration(s):");
+		for (int i = 0; i < PHASES.length; i++)
+			b.append(' ').append(PHASES[i]).append('=').append(millis(nanos.get(i))).append("ms");
+		for (int i = 0; i < COUNTS.length; i++)
+			b.append(' ').append(COUNTS[i]).append('=').append(counts.get(i));
+		return b.toString();
+	}
+
+	public String toJson() {
+		final StringBuilder b = new StringBuilder("{\n");
+		b.append("  \"project\": \"").append(project.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+		b.append("  \"totalMillis\": ").append(millis(System.nanoTime() - started)).append(",\n");
+		b.append("  \"iterations\": ").append(iterations).append(",\n");
+		b.append("  \"phaseMillis\": {");
+		for (int i = 0; i < PHASES.length; i++)
+			b.append(i == 0 ? " " : ", ").append('"').append(PHASES[i]).append("\": ").append(millis(nanos.get(i)));
+		b.append(" },\n");
+		b.append("  \"counts\": {");
+		for (int i = 0; i < COUNTS.length; i++)
+			b.append(i == 0 ? " " : ", ").append('"').append(COUNTS[i]).append("\": ").append(counts.get(i));
+		b.append(" }\n}\n");
+		return b.toString();
+	}
+
+	private long millis(long nanos) {
+		return nanos / 1000000;
+	}
+
+}
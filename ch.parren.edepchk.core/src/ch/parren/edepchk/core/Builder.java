@@ -1,17 +1,41 @@
 package ch.parren.edepchk.core;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IFolder;
@@ -20,12 +44,22 @@ import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceDelta;
 import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
 import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.IncrementalProjectBuilder;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.OperationCanceledException;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.SubMonitor;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jdt.core.IBuffer;
 import org.eclipse.jdt.core.ICompilationUnit;
 import org.eclipse.jdt.core.IField;
 import org.eclipse.jdt.core.IImportDeclaration;
@@ -37,8 +71,10 @@ import org.eclipse.jdt.core.ISourceRange;
 import org.eclipse.jdt.core.IType;
 import org.eclipse.jdt.core.JavaCore;
 import org.eclipse.jdt.core.JavaModelException;
+import org.eclipse.jdt.core.search.FieldReferenceMatch;
 import org.eclipse.jdt.core.search.IJavaSearchConstants;
 import org.eclipse.jdt.core.search.IJavaSearchScope;
+import org.eclipse.jdt.core.search.MethodReferenceMatch;
 import org.eclipse.jdt.core.search.SearchEngine;
 import org.eclipse.jdt.core.search.SearchMatch;
 import org.eclipse.jdt.core.search.SearchParticipant;
@@ -50,7 +86,6 @@ import ch.parren.jdepchk.check.Checker;
 import ch.parren.jdepchk.check.Violation;
 import ch.parren.jdepchk.check.ViolationListener;
 import ch.parren.jdepchk.classes.AbstractClassFilesSet;
-import ch.parren.jdepchk.classes.ClassFile;
 import ch.parren.jdepchk.classes.ClassSet;
 import ch.parren.jdepchk.classes.ClassSets;
 import ch.parren.jdepchk.classes.CombinedClassSetVisitor;
@@ -67,11 +102,29 @@ import ch.parren.jdepchk.rules.parser.RuleSetLoader;
  * Runs a JDepChk check (and an extraction if configured) on all the
  * added/changed .class files reported to the build.
  * <p>
- * Configuration is cached across runs and only refreshed if one of the
- * configuration file timestamps changes (config files or rules files). When the
+ * Configuration is cached across runs and only refreshed if the contents of one
+ * of the configuration files change (config files or rules files). Timestamps
+ * are only used to avoid rehashing files that were not touched. When the
  * configuration is changed, we run a full edepchk build instead of an
- * incremental one. This happens in particular if extraction changes one of the
- * rules files.
+ * incremental one. Existing markers are reconciled with the new violations
+ * rather than recreated, so unchanged violations keep their markers. If only
+ * rules files changed, we just reload the rule sets using them and fully
+ * recheck the scopes using those rule sets. If extraction changes rules files,
+ * we reload them the same way, but then only recheck the classes in the
+ * packages extracted from and the classes referencing them, without extracting
+ * again.
+ * <p>
+ * The fingerprints of the last successfully built configuration are also kept
+ * in the plugin's state location. So after a restart, if none of the config and
+ * rules files changed, we can go on with an incremental build instead of
+ * rechecking everything. Also kept there is an index of which classes reference
+ * which, so incremental builds recheck the classes referencing changed or
+ * removed classes, and drop the markers of removed ones. For scopes that only
+ * check and do not stream markers, the violations found in each class file
+ * are cached there as well, by the class file's hash, so classes whose bytes
+ * did not change are not parsed again until the scope's rules change. All this
+ * is only written when the workspace is saved, not after every build, and a
+ * clean discards it.
  * <p>
  * Configuration files (edepchk.conf, .edepchk) define which JDepChk rules files
  * to use for which output paths. They follow JDepChk's config file format. Dirs
@@ -88,68 +141,179 @@ import ch.parren.jdepchk.rules.parser.RuleSetLoader;
  * --classes a/separate/binary/path/
  *     --rules a/jdepchk/rules-file.jdep
  * </pre>
+ * <p>
+ * Global options are <code>--max-errors N</code>, which stops checking after N
+ * violations, <code>--max-scope-errors N</code> and
+ * <code>--max-unit-errors N</code>, which mark at most N violations per scope
+ * and per source file (but go on counting them for the scope's summary
+ * marker), and <code>--parallel-scopes N</code>, which checks up to N scopes
+ * concurrently. Scopes extracting rules from annotations are always checked on
+ * the build thread since they may share rules dirs. Within a scope that does
+ * not extract, <code>--scan-threads N</code> reads and checks the class files
+ * on N threads. Markers are always created on the build thread in a single
+ * workspace operation. With <code>--async-markers</code>, the build only marks
+ * the declarations of violating classes, and a background job then replaces
+ * these markers by ones on the offending references. With
+ * <code>--stream-markers N</code>, scopes that do not extract hand the
+ * violations of every N violating classes to the build thread to be turned
+ * into markers while scanning goes on, so they are not all held in memory.
+ * These scopes do not cache violations across builds either, since the cache
+ * would hold them all in memory after all.
+ * With <code>--scan-output-dirs</code>, builds that check whole scopes list
+ * the class files in the scopes' folders from the file system instead of
+ * walking the workspace, so they also see class files the workspace was not
+ * refreshed for yet, which later arrive as changes in incremental builds.
+ * <p>
+ * The tracing options <code>/debug/buildStats</code> and
+ * <code>/debug/buildStats/json</code> log the time spent in each phase of a
+ * build, and how much it processed, to the error log or a JSON file in the
+ * plugin's state location.
  */
 public final class Builder extends IncrementalProjectBuilder {
 
 	public static final String BUILDER_ID = "ch.parren.edepchk.core.edepchkBuilder";
 	public static final String MARKER_TYPE = "ch.parren.edepchk.core.edepchkProblem";
 	public static final String RULE_MARKER_TYPE = "ch.parren.edepchk.core.edepchkParseError";
+	/** Family of the jobs placing the markers of builds with --async-markers. */
+	public static final String PLACEMENT_JOB_FAMILY = "ch.parren.edepchk.core.markerPlacement";
+
+	/** Marker attribute identifying the scope that reported a violation. */
+	private static final String SCOPE_ATTR = "ch.parren.edepchk.scope";
+	/** Marker attribute flagging markers still awaiting their precise location. */
+	private static final String PENDING_ATTR = "ch.parren.edepchk.pending";
+	/** Marker attribute identifying the build that added a pending marker. */
+	private static final String BUILD_ATTR = "ch.parren.edepchk.build";
+	/** Marker attribute naming the class that violated a rule. */
+	private static final String CLASS_ATTR = "ch.parren.edepchk.class";
+	/** Marker attribute flagging a scope's summary of what was not marked. */
+	private static final String SUMMARY_ATTR = "ch.parren.edepchk.summary";
 
 	public static final String[] CONFIG_NAMES = { "edepchk.conf", ".edepchk" };
 
 	private Config config = null;
+	private MarkerPlacementJob placementJob = null;
+	private final Map<String, DependencyIndex> dependencyIndexes = New.hashMap();
+	private final Map<String, ViolationCache> violationCaches = New.hashMap();
+	private final Map<String, ViolationTally> violationTallies = New.hashMap();
+	private BuildStats stats = null;
+	/** Whether the last build succeeded, so its state may be saved with the workspace. */
+	private boolean stateCurrent = false;
+	/** Numbers the builds of this session, so pending markers tell which build added them. */
+	private int builds = 0;
 
 	@Override protected IProject[] build(int kind, Map args, IProgressMonitor monitor) throws CoreException {
+		final SubMonitor progress = SubMonitor.convert(monitor, "Checking dependencies of " + getProject().getName(),
+				100);
+		stats = new BuildStats(getProject().getName());
 		try {
 
 			/*
-			 * We do a max of 3 iterations: first might update rules from an
-			 * incremental build, second might update from a subsequent full
-			 * build, third is final check when no rules should change anymore.
+			 * If extraction changes the rules, we reload just the changed rules
+			 * files and recheck the classes they may affect in a second
+			 * iteration, without extracting again. So we only need a third if
+			 * reloading finds the config itself changed meanwhile.
 			 */
+			Collection<Config.ClassPathSet> extractedRules = null;
+			Set<String> extractedPackages = null;
 			for (int iter = 0; iter < 3; iter++) {
-				if (kind == FULL_BUILD || null == config || !config.isUpToDate()) {
+				progress.setWorkRemaining(100);
+				progress.subTask("Reading dependency rules");
+				stats.iterated();
+				final long configStarted = stats.start();
+				Collection<Config.ClassPathSet> staleScopes = null;
+				if ((kind != FULL_BUILD || null != extractedRules) && null != config)
+					staleScopes = config.refresh();
+				if (null == staleScopes) {
 					/*
-					 * We always do a full check on startup since we don't know
-					 * whether the config changed. Might store config version
-					 * info to a temp cache eventually.
+					 * On startup, we only know whether the config changed if
+					 * the last build left its fingerprints in the state cache.
 					 */
+					final boolean restoring = null == config && kind != FULL_BUILD;
 					config = parseConfig();
-					kind = FULL_BUILD;
+					if (!restoring || !config.matchesSavedState())
+						kind = FULL_BUILD;
+					staleScopes = Collections.emptyList();
+					extractedRules = null;
 				}
+				discardSavedState();
+				stats.stop(BuildStats.CONFIG, configStarted);
+				progress.worked(5);
 
-				final Adapter adapter = new Adapter(config);
+				final Adapter adapter = new Adapter(config, progress.newChild(95));
+				final long visitStarted = stats.start();
 
 				Visitor visitor = new Visitor(adapter);
-				if (kind == FULL_BUILD) {
-					deleteMarkers(getProject());
-					getProject().accept(visitor);
+				if (null != extractedRules) {
+					final Set<Config.ClassPathSet> affected = new LinkedHashSet<Config.ClassPathSet>(extractedRules);
+					affected.addAll(staleScopes);
+					for (Config.ClassPathSet scope : affected)
+						if (scope.checkClasses)
+							adapter.recheck(scope, extractedPackages);
+					kind = INCREMENTAL_BUILD;
+				} else if (kind == FULL_BUILD) {
+					adapter.markers.clear(getProject());
+					adapter.addAllClassFiles(visitor);
 				} else {
 					final IResourceDelta delta = getDelta(getProject());
 					if (delta == null) {
-						deleteMarkers(getProject());
-						getProject().accept(visitor);
+						adapter.markers.clear(getProject());
+						adapter.addAllClassFiles(visitor);
 					} else {
 						delta.accept(visitor);
+						for (Config.ClassPathSet scope : staleScopes)
+							adapter.recheck(scope);
 					}
 				}
 				visitor = null;
+				stats.stop(BuildStats.VISIT, visitStarted);
 
 				if (!adapter.run(kind))
 					break;
 
-				kind = FULL_BUILD;
+				extractedRules = adapter.extractedRules;
+				extractedPackages = adapter.extractedPackages;
 			}
+			stateCurrent = true;
+			Activator.stateChanged(this);
+			reportStats();
 			return null;
 
 		} catch (CoreException ce) {
 			throw ce;
+		} catch (OperationCanceledException oce) {
+			// Our dependency indexes may be incomplete now.
+			forgetLastBuiltState();
+			throw oce;
 		} catch (RuntimeException re) {
 			throw re;
 		} catch (ErrorReport e) {
 			throw new RuntimeException(e);
 		} catch (Exception e) {
 			throw new RuntimeException(e);
+		} finally {
+			if (null != monitor)
+				monitor.done();
+		}
+	}
+
+	/** Logs or saves the stats of the build if the tracing options say so. */
+	private void reportStats() {
+		if (Activator.isTracing("/debug/buildStats"))
+			Activator.log(new Status(IStatus.INFO, Activator.PLUGIN_ID, stats.toString()));
+		if (Activator.isTracing("/debug/buildStats/json")) {
+			final IPath dir = Activator.stateLocation().append("projects");
+			dir.toFile().mkdirs();
+			final File file = dir.append(getProject().getName() + ".stats.json").toFile();
+			try {
+				final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+				try {
+					out.write(stats.toJson());
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				Activator.log(new Status(IStatus.WARNING, Activator.PLUGIN_ID, "Cannot write " + file, e));
+			}
 		}
 	}
 
@@ -159,10 +323,193 @@ public final class Builder extends IncrementalProjectBuilder {
 	}
 
 	@Override protected void clean(IProgressMonitor monitor) throws CoreException {
+		Job.getJobManager().cancel(this);
+		discardSavedState();
+		dependencyIndexes.clear();
+		violationCaches.clear();
+		violationTallies.clear();
+		deleteScopeStates();
 		deleteMarkers(getProject());
 	}
 
-	private final class Visitor implements IResourceVisitor, IResourceDeltaVisitor {
+	/** Bump this whenever the format of the saved state changes. */
+	private static final int STATE_VERSION = 4;
+
+	private File stateFile() {
+		final IPath dir = Activator.stateLocation().append("projects");
+		dir.toFile().mkdirs();
+		return dir.append(getProject().getName() + ".state").toFile();
+	}
+
+	/**
+	 * Called before we touch any markers so a build that fails half-way cannot
+	 * leave behind a state claiming the markers are current.
+	 */
+	private void discardSavedState() {
+		stateCurrent = false;
+		final File file = stateFile();
+		if (file.exists())
+			file.delete();
+	}
+
+	/**
+	 * The dependency index of a scope, loaded from the state cache if this is
+	 * the first build since startup. Full checks of a scope rebuild it.
+	 */
+	private DependencyIndex dependencyIndex(String scopeKey) {
+		DependencyIndex index = dependencyIndexes.get(scopeKey);
+		if (null == index) {
+			index = new DependencyIndex();
+			index.load(scopeStateFile(scopeKey, ".deps"));
+			dependencyIndexes.put(scopeKey, index);
+		}
+		return index;
+	}
+
+	/**
+	 * The cached violations of a scope, loaded from the state cache if this is
+	 * the first build since startup. Entries are dropped when the scope's rules
+	 * change.
+	 */
+	private ViolationCache violationCache(String scopeKey) {
+		ViolationCache cache = violationCaches.get(scopeKey);
+		if (null == cache) {
+			cache = new ViolationCache();
+			cache.load(scopeStateFile(scopeKey, ".viol"));
+			violationCaches.put(scopeKey, cache);
+		}
+		return cache;
+	}
+
+	/**
+	 * How many violations of each class of a scope were marked or not, loaded
+	 * from the state cache if this is the first build since startup. Full
+	 * checks of a scope count them all anew.
+	 */
+	private ViolationTally violationTally(String scopeKey) {
+		ViolationTally tally = violationTallies.get(scopeKey);
+		if (null == tally) {
+			tally = new ViolationTally();
+			tally.load(scopeStateFile(scopeKey, ".tally"));
+			violationTallies.put(scopeKey, tally);
+		}
+		return tally;
+	}
+
+	private File scopeStateFile(String scopeKey, String suffix) {
+		final IPath dir = Activator.stateLocation().append("projects");
+		dir.toFile().mkdirs();
+		return dir.append(getProject().getName() + "." + Integer.toHexString(scopeKey.hashCode()) + suffix).toFile();
+	}
+
+	/**
+	 * Saves what the last build left behind, if it succeeded. Called when the
+	 * workspace is saved, so builds do not rewrite whole scope states each
+	 * time. The config state goes last, as it claims the others are current.
+	 */
+	void saveState() {
+		if (!stateCurrent)
+			return;
+		for (Map.Entry<String, DependencyIndex> e : dependencyIndexes.entrySet())
+			e.getValue().save(scopeStateFile(e.getKey(), ".deps"));
+		for (Map.Entry<String, ViolationCache> e : violationCaches.entrySet())
+			e.getValue().save(scopeStateFile(e.getKey(), ".viol"));
+		for (Map.Entry<String, ViolationTally> e : violationTallies.entrySet())
+			e.getValue().save(scopeStateFile(e.getKey(), ".tally"));
+		config.saveState();
+	}
+
+	/** Deletes the saved states of all scopes, also of those not loaded since startup. */
+	private void deleteScopeStates() {
+		final String prefix = getProject().getName() + ".";
+		final File[] files = stateFile().getParentFile().listFiles(new FilenameFilter() {
+			@Override public boolean accept(File dir, String name) {
+				return name.startsWith(prefix) && name.substring(prefix.length()).matches("[0-9a-f]+\\.(deps|viol|tally)");
+			}
+		});
+		if (null != files)
+			for (File file : files)
+				file.delete();
+	}
+
+	private MarkerPlacementJob placementJob() {
+		if (null == placementJob)
+			placementJob = new MarkerPlacementJob();
+		return placementJob;
+	}
+
+	/**
+	 * Refines the pending markers added by builds running with
+	 * --async-markers, off the build thread. Units queued again by a later build
+	 * replace their earlier entries. Units queued again by the same build, as
+	 * when streaming markers, are merged.
+	 */
+	private final class MarkerPlacementJob extends Job {
+
+		private final Map<String, Adapter.ClassPathSet.UnitViolations> queue = //
+		new LinkedHashMap<String, Adapter.ClassPathSet.UnitViolations>();
+
+		public MarkerPlacementJob() {
+			super("Locating dependency violations in " + getProject().getName());
+		}
+
+		public void enqueue(Collection<Adapter.ClassPathSet.UnitViolations> units) {
+			synchronized (queue) {
+				for (Adapter.ClassPathSet.UnitViolations unit : units) {
+					final Adapter.ClassPathSet.UnitViolations queued = queue.get(unit.key());
+					if (null != queued && queued.isFromSameBuildAs(unit))
+						queued.absorb(unit);
+					else
+						queue.put(unit.key(), unit);
+				}
+			}
+			schedule();
+		}
+
+		@Override protected IStatus run(IProgressMonitor monitor) {
+			final SubMonitor progress = SubMonitor.convert(monitor);
+			while (true) {
+				final Adapter.ClassPathSet.UnitViolations unit;
+				synchronized (queue) {
+					if (queue.isEmpty())
+						return Status.OK_STATUS;
+					progress.setWorkRemaining(queue.size());
+					final Iterator<Adapter.ClassPathSet.UnitViolations> next = queue.values().iterator();
+					unit = next.next();
+					next.remove();
+				}
+				try {
+					if (progress.isCanceled())
+						throw new OperationCanceledException();
+					unit.refinePendingMarkers(progress.newChild(1));
+				} catch (OperationCanceledException e) {
+					// Keep it for the next run unless a later build already queued it again.
+					synchronized (queue) {
+						final Adapter.ClassPathSet.UnitViolations queued = queue.get(unit.key());
+						if (null == queued)
+							queue.put(unit.key(), unit);
+						else if (queued.isFromSameBuildAs(unit))
+							queued.absorb(unit);
+					}
+					return Status.CANCEL_STATUS;
+				} catch (CoreException e) {
+					return e.getStatus();
+				}
+			}
+		}
+
+		@Override public boolean belongsTo(Object family) {
+			return family == Builder.this || PLACEMENT_JOB_FAMILY.equals(family);
+		}
+	}
+
+	/**
+	 * Collects the class files to check. Full walks of the project or a scope
+	 * go through resource proxies and skip folders that cannot contain any
+	 * scope, so large source and resource trees are not visited at all. Their
+	 * markers are cleared for the whole project at once instead.
+	 */
+	private final class Visitor implements IResourceProxyVisitor, IResourceVisitor, IResourceDeltaVisitor {
 
 		private final Adapter checker;
 
@@ -178,13 +525,48 @@ public final class Builder extends IncrementalProjectBuilder {
 			switch (delta.getKind()) {
 			case IResourceDelta.ADDED:
 			case IResourceDelta.CHANGED:
+				// Full builds clear the whole project instead.
+				if (resource instanceof IFile && JavaCore.isJavaLikeFileName(resource.getName()))
+					checker.markers.clear(resource);
+				return visit(resource);
+			case IResourceDelta.REMOVED:
+				if (resource instanceof IFile) {
+					if (resource.getName().endsWith(".class") && isInCurrentScope(resource.getFullPath()))
+						currentScope.removeClassFile((IFile) resource);
+					return true;
+				}
 				return visit(resource);
 			}
 			return true;
 		}
 
+		@Override public boolean visit(IResourceProxy proxy) throws CoreException {
+			switch (proxy.getType()) {
+			case IResource.FOLDER:
+				checker.checkCanceled();
+				final IPath fullPath = proxy.requestFullPath();
+				if (null != topLevelPath && topLevelPath.isPrefixOf(fullPath))
+					return true;
+				topLevelPath = null;
+				final String relPath = fullPath.removeFirstSegments(1).toPortableString();
+				currentScope = checker.setForPath(relPath);
+				if (null != currentScope) {
+					topLevelPath = fullPath;
+					return true;
+				}
+				return checker.hasSetsBelow(relPath);
+			case IResource.FILE:
+				if (proxy.getName().endsWith(".class") && isInCurrentScope(proxy.requestFullPath()))
+					currentScope.addClassFile((IFile) proxy.requestResource());
+				return false;
+			default:
+				return true;
+			}
+		}
+
 		@Override public boolean visit(IResource resource) throws CoreException {
 			if (resource instanceof IFolder) {
+				checker.checkCanceled();
 				final IFolder folder = (IFolder) resource;
 				final IPath fullPath = folder.getFullPath();
 				if (null != topLevelPath && topLevelPath.isPrefixOf(fullPath))
@@ -197,33 +579,110 @@ public final class Builder extends IncrementalProjectBuilder {
 			} else if (resource instanceof IFile) {
 				final IFile file = (IFile) resource;
 				final String name = file.getName();
-				if (name.endsWith(".class")) {
-					if (null != currentScope)
-						currentScope.addClassFile(file);
-				} else if (JavaCore.isJavaLikeFileName(name))
-					deleteMarkers(file);
+				if (name.endsWith(".class") && isInCurrentScope(file.getFullPath()))
+					currentScope.addClassFile(file);
 			}
 			return true;
 		}
+
+		/** Files may come after the scope's folder in a parent we did not skip. */
+		private boolean isInCurrentScope(IPath fullPath) {
+			return null != currentScope && topLevelPath.isPrefixOf(fullPath);
+		}
 	}
 
 	private final class Config {
 
 		private final Collection<ClassPathSet> pathSets = New.linkedList();
+		/** The scopes by their --classes paths, for the visitor and for class names. */
+		private final PathTrie<ClassPathSet> scopesByPath = new PathTrie<ClassPathSet>();
+		private final Collection<File> configFiles = New.linkedList();
 		private final Map<File, FingerPrint> fingerPrints = New.hashMap();
 
 		private int maxErrors = 500;
+		private int maxScopeErrors = 0;
+		private int maxUnitErrors = 0;
+		private int parallelScopes = 1;
+		private int scanThreads = 1;
+		private boolean asyncMarkers = false;
+		private int streamMarkers = 0;
+		private boolean scanOutputDirs = false;
 
 		public Config() throws Exception, ErrorReport {
 			for (String n : CONFIG_NAMES)
 				tryToLoad(n);
 		}
 
-		public boolean isUpToDate() {
-			for (FingerPrint fp : fingerPrints.values())
-				if (!fp.isUpToDate())
-					return false;
-			return true;
+		/**
+		 * Reloads the rule sets using changed rules files, or rules dirs with
+		 * new files in them. Returns the scopes whose rules were reloaded, or
+		 * null if a config file itself changed so the whole config must be
+		 * parsed again.
+		 */
+		public Collection<ClassPathSet> refresh() throws IOException {
+			for (File file : configFiles)
+				if (!fingerPrints.get(file).isUpToDate())
+					return null;
+			final Collection<ClassPathSet> reloaded = New.linkedList();
+			final Set<File> stale = New.hashSet();
+			for (Map.Entry<File, FingerPrint> e : fingerPrints.entrySet())
+				if (!e.getValue().isUpToDate())
+					stale.add(e.getKey());
+			fingerPrints.keySet().removeAll(stale);
+			for (ClassPathSet scope : pathSets)
+				if (scope.reloadRulesUsing(stale))
+					reloaded.add(scope);
+			return reloaded;
+		}
+
+		/**
+		 * Whether the last successful build saved exactly the fingerprints we
+		 * just took, meaning its markers are still valid for this config.
+		 */
+		public boolean matchesSavedState() {
+			final File file = stateFile();
+			if (!file.exists())
+				return false;
+			try {
+				final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+				try {
+					if (in.readInt() != STATE_VERSION)
+						return false;
+					final int n = in.readInt();
+					if (n != fingerPrints.size())
+						return false;
+					for (int i = 0; i < n; i++) {
+						final FingerPrint fp = fingerPrints.get(new File(in.readUTF()));
+						if (null == fp || !fp.matches(in))
+							return false;
+					}
+					return true;
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		/** Failing to save just means a full build after the next restart. */
+		public void saveState() {
+			final File file = stateFile();
+			try {
+				final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+				try {
+					out.writeInt(STATE_VERSION);
+					out.writeInt(fingerPrints.size());
+					for (Map.Entry<File, FingerPrint> e : fingerPrints.entrySet()) {
+						out.writeUTF(e.getKey().getPath());
+						e.getValue().write(out);
+					}
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				file.delete();
+			}
 		}
 
 		private void fingerPrint(File file) {
@@ -234,14 +693,15 @@ public final class Builder extends IncrementalProjectBuilder {
 
 		private void tryToLoad(String fileName) throws Exception, ErrorReport {
 			final IFile cfgFile = getProject().getFile(fileName);
-			fingerPrint(cfgFile.getLocation().toFile());
+			final File file = cfgFile.getLocation().toFile();
+			configFiles.add(file);
+			fingerPrint(file);
 			if (!cfgFile.exists())
 				return;
 
 			final OptionsParser parser = new OptionsParser() {
 
 				private ClassPathSet scope;
-				private RuleSetBuilder ruleSet;
 
 				@Override protected void visitScopeStart(String name) throws IOException, ErrorReport {
 					scope = newScope();
@@ -258,23 +718,23 @@ public final class Builder extends IncrementalProjectBuilder {
 				}
 
 				@Override protected void visitRuleSetStart(String name) throws IOException, ErrorReport {
-					ruleSet = new RuleSetBuilder(name);
+					scope.startRuleSet(name);
 				}
 
 				@Override protected void visitRulesInFile(File file) throws IOException, ErrorReport {
-					scope.addRulesInFile(file, ruleSet);
+					scope.addRules(RuleSource.FILE, file);
 				}
 
 				@Override protected void visitRulesInDir(File dir) throws IOException, ErrorReport {
-					scope.addRulesInDir(dir, ruleSet);
+					scope.addRules(RuleSource.DIR, dir);
 				}
 
 				@Override protected void visitRulesInSubDirs(File dir) throws IOException, ErrorReport {
-					scope.addRulesInSubDirs(dir, ruleSet);
+					scope.addRules(RuleSource.SUB_DIRS, dir);
 				}
 
 				@Override protected void visitRuleSetEnd() throws IOException, ErrorReport {
-					scope.addRules(ruleSet.finish());
+					scope.endRuleSet();
 				}
 
 				@Override protected void visitExtractAnnotations(boolean active) throws IOException, ErrorReport {
@@ -295,6 +755,20 @@ public final class Builder extends IncrementalProjectBuilder {
 						throws IOException, ErrorReport {
 					if ("--max-errors".equals(arg))
 						maxErrors = Integer.parseInt(more.next());
+					else if ("--max-scope-errors".equals(arg))
+						maxScopeErrors = Integer.parseInt(more.next());
+					else if ("--max-unit-errors".equals(arg))
+						maxUnitErrors = Integer.parseInt(more.next());
+					else if ("--parallel-scopes".equals(arg))
+						parallelScopes = Integer.parseInt(more.next());
+					else if ("--scan-threads".equals(arg))
+						scanThreads = Integer.parseInt(more.next());
+					else if ("--async-markers".equals(arg))
+						asyncMarkers = true;
+					else if ("--stream-markers".equals(arg))
+						streamMarkers = Integer.parseInt(more.next());
+					else if ("--scan-output-dirs".equals(arg))
+						scanOutputDirs = true;
 					else
 						super.visitArg(arg, more, flagUnknown);
 				}
@@ -316,25 +790,65 @@ public final class Builder extends IncrementalProjectBuilder {
 		}
 
 		public ClassPathSet scopeForPath(String relPath) {
+			return scopesByPath.firstAt(relPath);
+		}
+
+		/**
+		 * The --classes paths not inside another one, in config order. These
+		 * are the folders a walk of the project assigns scopes by.
+		 */
+		public Collection<String> topLevelPaths() {
+			final Collection<String> top = new LinkedHashSet<String>();
 			for (ClassPathSet scope : pathSets)
-				if (scope.matches(relPath))
-					return scope;
-			return null;
+				for (String path : scope.paths)
+					if (!scopesByPath.hasPathsAbove(path))
+						top.add(path);
+			return top;
+		}
+
+		/**
+		 * The top-level paths a walk of the project assigns to the scope. Its
+		 * paths inside another top-level path are not among them, as their
+		 * classes go to the scope of the outer path.
+		 */
+		public Collection<String> topLevelPathsOf(ClassPathSet scope) {
+			final Collection<String> found = New.linkedList();
+			for (String path : topLevelPaths())
+				if (scopeForPath(path) == scope)
+					found.add(path);
+			return found;
+		}
+
+		/** Whether scopes have paths in subfolders of the given folder. */
+		public boolean hasScopesBelow(String relPath) {
+			return scopesByPath.hasPathsBelow(relPath);
+		}
+
+		/**
+		 * The longest of the scope's paths, with a trailing '/', that the
+		 * project-relative path is in, or null if none.
+		 */
+		public String rootPathOf(ClassPathSet scope, String relPath) {
+			return scopesByPath.longestPrefixWith(relPath, scope);
 		}
 
 		private final class ClassPathSet {
 
 			final Collection<String> paths = New.linkedList();
 			final Collection<RuleSet> ruleSets = New.linkedList();
+			final Collection<RuleSource> ruleSources = New.linkedList();
 			boolean checkClasses = true;
 			boolean extractFromAnnotations = false;
 			File localRulesDir;
 			File globalRulesDir;
 
+			private RuleSource loading;
+
 			public void addPath(String path) {
 				if (path.endsWith("/"))
 					path = path.substring(0, path.length() - 1);
 				paths.add(path);
+				scopesByPath.add(path, this);
 			}
 
 			public File toAbsDir(File dir) {
@@ -342,97 +856,320 @@ public final class Builder extends IncrementalProjectBuilder {
 				return new File(res.getRawLocationURI());
 			}
 
-			public void addRulesInFile(File relFile, RuleSetBuilder builder) throws IOException {
-				final IPath path = Path.fromOSString(relFile.getPath());
-				final IPath fullPath = path.isAbsolute() ? path : getProject().getLocation().append(path);
-				loadRulesFromFile(builder, path, fullPath.toFile());
+			public void startRuleSet(String name) {
+				loading = new RuleSource(name);
+			}
+
+			public void addRules(int kind, File relPath) throws IOException {
+				loading.add(kind, relPath);
+			}
+
+			public void endRuleSet() {
+				loading.finish();
+				ruleSources.add(loading);
+				ruleSets.add(loading.ruleSet);
+				loading = null;
+			}
+
+			/** Returns whether any of my rule sets used one of the stale files. */
+			public boolean reloadRulesUsing(Set<File> stale) throws IOException {
+				boolean reloaded = false;
+				for (RuleSource source : ruleSources)
+					if (source.usesAny(stale) || source.gainedFiles()) {
+						source.reload();
+						reloaded = true;
+					}
+				if (reloaded) {
+					ruleSets.clear();
+					for (RuleSource source : ruleSources)
+						ruleSets.add(source.ruleSet);
+				}
+				return reloaded;
+			}
+
+			/**
+			 * Identifies the rules I check against by the contents of the
+			 * config and rules files they were loaded from.
+			 */
+			public long rulesFingerPrint() {
+				final StringBuilder b = new StringBuilder();
+				for (File file : configFiles)
+					b.append(fingerPrints.get(file).hash).append('\n');
+				for (RuleSource source : ruleSources) {
+					b.append(source.name).append('\n');
+					final List<File> files = new ArrayList<File>(source.files);
+					Collections.sort(files);
+					for (File file : files)
+						b.append(file.getPath()).append(':').append(fingerPrints.get(file).hash).append('\n');
+				}
+				final CRC32 crc = new CRC32();
+				crc.update(b.toString().getBytes());
+				return crc.getValue();
+			}
+
+			/** Stable across sessions so we can find the markers we reported. */
+			public String key() {
+				final StringBuilder b = new StringBuilder();
+				for (String path : paths)
+					b.append(path).append('/');
+				return b.toString();
+			}
+		}
+
+		/**
+		 * Remembers where the rules of a rule set came from so we can reload it
+		 * when one of its files changes.
+		 */
+		private final class RuleSource {
+
+			static final int FILE = 0;
+			static final int DIR = 1;
+			static final int SUB_DIRS = 2;
+
+			private final String name;
+			private final List<Integer> kinds = New.arrayList();
+			private final List<File> relPaths = New.arrayList();
+			private final Set<File> files = New.hashSet();
+			private final Set<IFile> resources = New.hashSet();
+			/** Timestamps of the dirs I load all rules files from; see stampOf(). */
+			private final Map<File, Long> dirStamps = New.hashMap();
+			/** Timestamps of the dirs I load all subdirs of. */
+			private final Map<File, Long> parentStamps = New.hashMap();
+
+			private RuleSetBuilder builder;
+			RuleSet ruleSet;
+
+			public RuleSource(String name) {
+				this.name = name;
+				this.builder = new RuleSetBuilder(name);
 			}
 
-			public void addRulesInDir(File relDir, RuleSetBuilder builder) throws IOException {
-				final IPath path = Path.fromOSString(relDir.getPath());
-				final IPath fullPath = path.isAbsolute() ? path : getProject().getLocation().append(path);
-				loadRulesFromDir(builder, path, fullPath.toFile());
+			public void add(int kind, File relPath) throws IOException {
+				kinds.add(kind);
+				relPaths.add(relPath);
+				load(kind, relPath);
 			}
 
-			public void addRulesInSubDirs(File relDir, RuleSetBuilder builder) throws IOException {
-				final IPath path = Path.fromOSString(relDir.getPath());
-				final IPath fullPath = path.isAbsolute() ? path : getProject().getLocation().append(path);
-				loadRulesFromSubDirs(builder, path, fullPath.toFile());
+			public void finish() {
+				ruleSet = builder.finish();
+				builder = null;
 			}
 
-			private void loadRulesFromFile(RuleSetBuilder builder, IPath path, File file) throws FileNotFoundException,
-					IOException {
+			public boolean usesAny(Set<File> stale) {
+				for (File file : files)
+					if (stale.contains(file))
+						return true;
+				return false;
+			}
+
+			/**
+			 * Whether one of the dirs I load rules from has files I did not
+			 * load. Only lists the dirs whose timestamps changed, as adding
+			 * files or subdirs changes them.
+			 */
+			public boolean gainedFiles() {
+				for (Map.Entry<File, Long> e : dirStamps.entrySet()) {
+					final File dir = e.getKey();
+					if (dir.lastModified() == e.getValue())
+						continue;
+					if (hasUnloaded(dir))
+						return true;
+					e.setValue(stampOf(dir));
+				}
+				final Collection<File> newSubDirs = New.linkedList();
+				for (Map.Entry<File, Long> e : parentStamps.entrySet()) {
+					final File dir = e.getKey();
+					if (dir.lastModified() == e.getValue())
+						continue;
+					for (File sub : subDirsOf(dir))
+						if (!dirStamps.containsKey(sub)) {
+							if (hasUnloaded(sub))
+								return true;
+							newSubDirs.add(sub);
+						}
+					e.setValue(stampOf(dir));
+				}
+				// Empty so far, so they do not change my rules, but files may yet be added.
+				for (File sub : newSubDirs)
+					dirStamps.put(sub, stampOf(sub));
+				return false;
+			}
+
+			/**
+			 * The dir's timestamp, or -1 if it is so recent that files added
+			 * later within the file system's timestamp granularity would not
+			 * change it, so we list the dir again next time.
+			 */
+			private long stampOf(File dir) {
+				final long modified = dir.lastModified();
+				return (System.currentTimeMillis() - modified < 2000) ? -1 : modified;
+			}
+
+			private boolean hasUnloaded(File dir) {
+				for (File file : rulesFilesIn(dir))
+					if (!files.contains(file))
+						return true;
+				return false;
+			}
+
+			public void reload() throws IOException {
+				for (IFile res : resources)
+					if (res.exists())
+						try {
+							res.deleteMarkers(RULE_MARKER_TYPE, false, IResource.DEPTH_ZERO);
+						} catch (CoreException e) {
+							throw new RuntimeException(e);
+						}
+				files.clear();
+				resources.clear();
+				dirStamps.clear();
+				parentStamps.clear();
+				builder = new RuleSetBuilder(name);
+				for (int i = 0; i < kinds.size(); i++)
+					load(kinds.get(i), relPaths.get(i));
+				finish();
+			}
+
+			private void load(int kind, File relPath) throws IOException {
+				final IPath path = Path.fromOSString(relPath.getPath());
+				final IPath fullPath = fullPathOf(path);
+				switch (kind) {
+				case FILE:
+					loadRulesFromFile(path, fullPath.toFile());
+					break;
+				case DIR:
+					loadRulesFromDir(path, fullPath.toFile());
+					break;
+				case SUB_DIRS:
+					loadRulesFromSubDirs(path, fullPath.toFile());
+					break;
+				}
+			}
+
+			private void loadRulesFromFile(IPath path, File file) throws FileNotFoundException, IOException {
 				fingerPrint(file);
+				files.add(file);
+				final IFile res = getProject().getFile(path);
+				resources.add(res);
 				if (file.exists())
 					try {
 						RuleSetLoader.loadInto(file, builder);
 					} catch (FileParseException pe) {
-						final IFile res = getProject().getFile(path);
-						IMarker marker;
 						try {
-							marker = res.createMarker(RULE_MARKER_TYPE);
-							marker.setAttribute(IMarker.MESSAGE, pe.cause.getMessage());
-							marker.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
-							marker.setAttribute(IMarker.CHAR_START, pe.cause.startOffs);
-							marker.setAttribute(IMarker.CHAR_END, pe.cause.endOffs + 1);
+							res.createMarker(RULE_MARKER_TYPE).setAttributes( //
+									new String[] { IMarker.MESSAGE, IMarker.SEVERITY, IMarker.CHAR_START,
+											IMarker.CHAR_END }, //
+									new Object[] { pe.cause.getMessage(), IMarker.SEVERITY_ERROR, pe.cause.startOffs,
+											pe.cause.endOffs + 1 });
 						} catch (CoreException e) {
 							throw new RuntimeException(e);
 						}
 					}
 			}
 
-			private void loadRulesFromDir(RuleSetBuilder builder, IPath path, File dir) throws FileNotFoundException,
-					IOException {
-				if (!dir.exists())
-					return;
-				final FilenameFilter filter = new FilenameFilter() {
-					@Override public boolean accept(File dir, String name) {
-						return !name.startsWith(".");
-					}
-				};
-				for (File file : dir.listFiles(filter))
+			private void loadRulesFromDir(IPath path, File dir) throws FileNotFoundException, IOException {
+				dirStamps.put(dir, stampOf(dir));
+				for (File file : rulesFilesIn(dir))
+					loadRulesFromFile(path.append(file.getName()), file);
+			}
+
+			private void loadRulesFromSubDirs(IPath path, File dir) throws FileNotFoundException, IOException {
+				parentStamps.put(dir, stampOf(dir));
+				for (File sub : subDirsOf(dir))
+					loadRulesFromDir(path.append(sub.getName()), sub);
+			}
+
+			private IPath fullPathOf(IPath path) {
+				return path.isAbsolute() ? path : getProject().getLocation().append(path);
+			}
+
+			private Collection<File> rulesFilesIn(File dir) {
+				final Collection<File> found = New.arrayList();
+				for (File file : listVisible(dir))
 					if (file.isFile())
-						loadRulesFromFile(builder, path.append(file.getName()), file);
+						found.add(file);
+				return found;
 			}
 
-			private void loadRulesFromSubDirs(RuleSetBuilder builder, IPath path, File dir)
-					throws FileNotFoundException, IOException {
+			private Collection<File> subDirsOf(File dir) {
+				final Collection<File> found = New.arrayList();
+				for (File sub : listVisible(dir))
+					if (sub.isDirectory())
+						found.add(sub);
+				return found;
+			}
+
+			private File[] listVisible(File dir) {
 				if (!dir.exists())
-					return;
-				final FilenameFilter filter = new FilenameFilter() {
+					return new File[0];
+				final File[] listed = dir.listFiles(new FilenameFilter() {
 					@Override public boolean accept(File dir, String name) {
 						return !name.startsWith(".");
 					}
-				};
-				for (File sub : dir.listFiles(filter))
-					if (sub.isDirectory())
-						loadRulesFromDir(builder, path.append(sub.getName()), sub);
-			}
-
-			public void addRules(RuleSet ruleSet) {
-				ruleSets.add(ruleSet);
-			}
-
-			public boolean matches(String candidate) {
-				for (String path : paths)
-					if (candidate.equals(path))
-						return true;
-				return false;
+				});
+				return (null == listed) ? new File[0] : listed;
 			}
 		}
 
+		/**
+		 * Tracks a file by timestamp, size and content hash. A changed
+		 * timestamp alone (as after a VCS checkout) does not make the file
+		 * stale as long as its contents are the same.
+		 */
 		private final class FingerPrint {
 
 			private final File file;
-			private final long lastModified;
+			private final long length;
+			private final long hash;
+			private long lastModified;
 
 			public FingerPrint(File file) {
 				this.file = file;
 				this.lastModified = file.lastModified();
+				this.length = file.length();
+				this.hash = contentHash(file);
 			}
 
 			public boolean isUpToDate() {
-				return file.lastModified() == this.lastModified;
+				final long modified = file.lastModified();
+				if (modified == this.lastModified && file.length() == this.length)
+					return true;
+				if (file.length() != this.length || contentHash(file) != this.hash)
+					return false;
+				this.lastModified = modified;
+				return true;
+			}
+
+			public void write(DataOutputStream out) throws IOException {
+				out.writeLong(length);
+				out.writeLong(hash);
+			}
+
+			public boolean matches(DataInputStream in) throws IOException {
+				final long savedLength = in.readLong();
+				final long savedHash = in.readLong();
+				return savedLength == length && savedHash == hash;
+			}
+		}
+
+		/** CRC32 of the file's contents, or -1 if it cannot be read. */
+		private long contentHash(File file) {
+			if (!file.isFile())
+				return -1;
+			try {
+				final InputStream in = new FileInputStream(file);
+				try {
+					final CRC32 crc = new CRC32();
+					final byte[] buf = new byte[8192];
+					int n;
+					while ((n = in.read(buf)) > 0)
+						crc.update(buf, 0, n);
+					return crc.getValue();
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				return -1;
 			}
 		}
 
@@ -444,16 +1181,81 @@ public final class Builder extends IncrementalProjectBuilder {
 
 		private final Config config;
 
-		private int errorsFound = 0;
-
-		public Adapter(Config config) {
+		private final AtomicInteger errorsFound = new AtomicInteger();
+
+		/** Stamped on the pending markers of this run; see refinePendingMarkers(). */
+		private final int buildId = ++builds;
+		/**
+		 * The stats of this run, also for refinements of its pending markers
+		 * running after the builder moved on to another build.
+		 */
+		private final BuildStats stats = Builder.this.stats;
+
+		/**
+		 * Scopes whose extraction changed the rules files, and the packages
+		 * (internal names) of the classes they extracted from.
+		 */
+		final Collection<Config.ClassPathSet> extractedRules = New.linkedList();
+		final Set<String> extractedPackages = New.hashSet();
+
+		/** All marker changes of this run, written at the end of {@link #run(int)}. */
+		final MarkerBatch markers = new MarkerBatch(MARKER_TYPE, IMarker.MESSAGE, IMarker.CHAR_START, IMarker.CHAR_END);
+
+		/** Fields and methods by name and descriptor, for targets of violations. */
+		private final Map<IType, Map<String, IMember>> membersByType = New.hashMap();
+
+		/**
+		 * Violations streamed from scanning threads, waiting to be turned into
+		 * markers on the build thread. Bounded so scanning cannot outrun us.
+		 */
+		private final BlockingQueue<Callable<Object>> streamed = new ArrayBlockingQueue<Callable<Object>>(2);
+		private final Thread buildThread = Thread.currentThread();
+
+		/** Only used on the build thread, except for checking cancellation. */
+		private final SubMonitor progress;
+		private SubMonitor scanProgress;
+		private final AtomicInteger classesScanned = new AtomicInteger();
+		private int classesTicked = 0;
+
+		public Adapter(Config config, SubMonitor progress) {
 			this.config = config;
+			this.progress = progress;
+		}
+
+		/** Called on any thread. */
+		public void checkCanceled() {
+			if (progress.isCanceled())
+				throw new OperationCanceledException();
+		}
+
+		/** Called on any thread whenever a class was scanned (or skipped). */
+		private void classScanned() {
+			checkCanceled();
+			classesScanned.incrementAndGet();
+			stats.count(BuildStats.CLASSES_SCANNED);
+			if (Thread.currentThread() == buildThread)
+				updateScanProgress();
+		}
+
+		private void updateScanProgress() {
+			final int scanned = classesScanned.get();
+			scanProgress.worked(scanned - classesTicked);
+			classesTicked = scanned;
+		}
+
+		/** Whether a subfolder of the folder may hold class files to check. */
+		public boolean hasSetsBelow(String relPath) {
+			return config.hasScopesBelow(relPath);
 		}
 
 		public ClassPathSet setForPath(String relPath) {
 			final Config.ClassPathSet cfg = config.scopeForPath(relPath);
 			if (null == cfg)
 				return null;
+			return setFor(cfg);
+		}
+
+		private ClassPathSet setFor(Config.ClassPathSet cfg) {
 			final ClassPathSet cached = pathSetsByConfig.get(cfg);
 			if (null != cached)
 				return cached;
@@ -462,27 +1264,228 @@ public final class Builder extends IncrementalProjectBuilder {
 			return created;
 		}
 
-		public boolean run(int kind) throws Exception {
-			boolean configChanged = false;
-			for (ClassPathSet pathSet : pathSetsByConfig.values())
-				configChanged = pathSet.run(kind) || configChanged;
-			return configChanged;
+		/**
+		 * Schedules a full check of a scope whose rules changed, even though
+		 * the build itself is incremental. Walks from the same top-level
+		 * folders as {@link #addAllClassFiles(Visitor)}, so the scope gets
+		 * the same classes as in a full build.
+		 */
+		public void recheck(Config.ClassPathSet cfg) throws CoreException {
+			final ClassPathSet set = setFor(cfg);
+			set.fullCheck = true;
+			markers.clear(getProject(), scopeFilter(cfg.key()));
+			final Visitor visitor = new Visitor(this);
+			for (String path : config.topLevelPathsOf(cfg))
+				if (config.scanOutputDirs)
+					addClassFilesIn(path);
+				else {
+					final IFolder folder = getProject().getFolder(path);
+					if (folder.exists())
+						folder.accept(visitor, IResource.NONE);
+				}
+		}
+
+		/** Adds the class files of all scopes, walking the project or the file system. */
+		public void addAllClassFiles(Visitor visitor) throws CoreException {
+			if (config.scanOutputDirs)
+				for (String path : config.topLevelPaths())
+					addClassFilesIn(path);
+			else
+				getProject().accept(visitor, IResource.NONE);
+		}
+
+		/**
+		 * Adds the class files below a --classes folder to the scope it
+		 * belongs to, as listed by the file system. Only creates handles, so
+		 * it does not matter whether the workspace knows about the files yet.
+		 */
+		private void addClassFilesIn(String path) {
+			final ClassPathSet set = setForPath(path);
+			if (null != set)
+				addClassFilesIn(set, getProject().getLocation().append(path).toFile(), getProject().getFolder(path));
+		}
+
+		private void addClassFilesIn(ClassPathSet set, File dir, IFolder folder) {
+			checkCanceled();
+			final File[] files = dir.listFiles();
+			if (null == files)
+				return;
+			for (File file : files) {
+				final String name = file.getName();
+				if (name.endsWith(".class"))
+					set.addClassFile(folder.getFile(name));
+				else if (file.isDirectory())
+					addClassFilesIn(set, file, folder.getFolder(name));
+			}
+		}
+
+		/**
+		 * Schedules a recheck of just the classes of a scope that rules
+		 * extracted from the given packages may affect: the classes in these
+		 * packages, and the classes referencing them. Does not extract again.
+		 */
+		public void recheck(Config.ClassPathSet cfg, Set<String> packages) {
+			setFor(cfg).recheckAffectedBy(packages);
+		}
+
+		public boolean run(final int kind) throws Exception {
+			final int threads = Math.min(config.parallelScopes, pathSetsByConfig.size());
+			final ExecutorService pool = (threads > 1) ? Executors.newFixedThreadPool(threads) : null;
+			try {
+				progress.setWorkRemaining(100);
+				progress.subTask("Finding classes to check");
+				int classes = 0;
+				for (ClassPathSet pathSet : pathSetsByConfig.values()) {
+					pathSet.prepare(kind);
+					classes += pathSet.classFiles.size();
+				}
+				scanProgress = progress.newChild(70).setWorkRemaining(classes);
+				scanProgress.subTask("Checking " + classes + " classes");
+
+				boolean configChanged = false;
+				final Collection<ClassPathSet> checked = New.linkedList();
+				final Map<ClassPathSet, Future<Boolean>> pending = new LinkedHashMap<ClassPathSet, Future<Boolean>>();
+				for (final ClassPathSet pathSet : pathSetsByConfig.values()) {
+					if (null != pool && !pathSet.config.extractFromAnnotations)
+						pending.put(pathSet, pool.submit(new Callable<Boolean>() {
+							@Override public Boolean call() throws Exception {
+								return pathSet.check(kind);
+							}
+						}));
+					else if (pathSet.check(kind))
+						configChanged = true;
+					else
+						checked.add(pathSet);
+				}
+				for (Map.Entry<ClassPathSet, Future<Boolean>> e : pending.entrySet())
+					if (await(e.getValue()))
+						configChanged = true;
+					else
+						checked.add(e.getKey());
+
+				updateScanProgress();
+
+				final SubMonitor placing = progress.newChild(30).setWorkRemaining(checked.size());
+				placing.subTask("Placing markers");
+				for (ClassPathSet pathSet : checked) {
+					pathSet.addViolationMarkers(placing.newChild(1));
+					pathSet.addSummaryMarker();
+				}
+				final long markersStarted = stats.start();
+				markers.flush(getProject(), null);
+				stats.stop(BuildStats.MARKERS, markersStarted);
+				stats.count(BuildStats.MARKERS_CREATED, markers.created());
+				stats.count(BuildStats.MARKERS_UPDATED, markers.updated());
+				stats.count(BuildStats.MARKERS_DELETED, markers.deleted());
+				return configChanged;
+			} finally {
+				if (null != pool)
+					pool.shutdownNow();
+			}
+		}
+
+		private Map<String, IMember> membersOf(IType type) throws JavaModelException {
+			final Map<String, IMember> cached = membersByType.get(type);
+			if (null != cached)
+				return cached;
+			final Map<String, IMember> members = New.hashMap();
+			for (IJavaElement elt : type.getChildren()) {
+				final String key;
+				if (elt instanceof IMethod)
+					key = memberKey(elt.getElementName(), ((IMethod) elt).getSignature());
+				else if (elt instanceof IField)
+					key = memberKey(elt.getElementName(), ((IField) elt).getTypeSignature());
+				else
+					continue;
+				if (!members.containsKey(key))
+					members.put(key, (IMember) elt);
+			}
+			membersByType.put(type, members);
+			return members;
+		}
+
+		private String memberKey(String name, String desc) {
+			return name + ' ' + desc;
+		}
+
+		/**
+		 * Waits for the future. On the build thread, meanwhile turns streamed
+		 * violations into markers, as the scanning threads may be waiting for
+		 * us to take them.
+		 */
+		private <T> T await(Future<T> future) throws Exception {
+			if (Thread.currentThread() == buildThread) {
+				while (!future.isDone()) {
+					final Callable<Object> batch = streamed.poll(20, TimeUnit.MILLISECONDS);
+					if (null != batch)
+						batch.call();
+					updateScanProgress();
+				}
+				Callable<Object> batch;
+				while (null != (batch = streamed.poll()))
+					batch.call();
+			}
+			return resultOf(future);
+		}
+
+		private <T> T resultOf(Future<T> future) throws Exception {
+			try {
+				return future.get();
+			} catch (ExecutionException e) {
+				final Throwable cause = e.getCause();
+				if (cause instanceof Exception)
+					throw (Exception) cause;
+				throw (Error) cause;
+			}
 		}
 
 		private final class ClassPathSet extends ViolationListener {
 
-			private final Collection<IFile> classFiles = New.arrayList();
-			private final Map<String, Collection<Violation>> violations = New.hashMap();
+			private final Collection<IFile> classFiles = new LinkedHashSet<IFile>();
+			private final Collection<String> removedClasses = New.linkedList();
+			private final Map<String, Collection<ViolationRecord>> violations = New.hashMap();
 			private final String[] rootPaths;
 
 			private final Config.ClassPathSet config;
+			private final DependencyIndex dependencies;
+			private final ViolationTally tally;
+			/**
+			 * Only for scopes that just check, as extraction must see every
+			 * class, and do not stream markers, as the cache keeps all
+			 * violations in memory.
+			 */
+			private final ViolationCache cache;
+
+			private boolean fullCheck = false;
+			/** Only rechecking classes affected by extracted rules; see recheckAffectedBy(). */
+			private boolean rulesChanged = false;
+			/** Internal names of the classes checked incrementally; null in full checks. */
+			private Collection<String> checkedClasses = null;
+			/**
+			 * Violations kept, and counted but not kept because of the limits,
+			 * including those of the classes an incremental check left alone.
+			 */
+			private int reported = 0;
+			private int suppressed = 0;
+			/** Classes not scanned at all because we hit --max-errors. */
+			private int skipped = 0;
+			private final Map<String, Integer> reportedByUnit = New.hashMap();
+			private final Set<String> classesWithSuppressed = New.hashSet();
+			/** Classes done scanning whose violations were not yet streamed. */
+			private final Collection<String> doneClasses = New.linkedList();
+			private final int streamEvery;
 
 			private ClassPathSet(Config.ClassPathSet config) {
 				this.config = config;
+				this.dependencies = dependencyIndex(config.key());
+				this.tally = violationTally(config.key());
+				this.streamEvery = config.extractFromAnnotations ? 0 : Adapter.this.config.streamMarkers;
+				this.cache = (config.checkClasses && !config.extractFromAnnotations && 0 == streamEvery)
+						? violationCache(config.key()) : null;
 				this.rootPaths = config.paths.toArray(new String[config.paths.size()]);
 				/*
-				 * Sort root paths by length (longest first) for finding the
-				 * root path of a given path with early exit.
+				 * Sort root paths by length (longest first) so a class in
+				 * nested roots is looked up in the innermost one first.
 				 */
 				for (int i = 0; i < rootPaths.length; i++)
 					rootPaths[i] += '/';
@@ -499,11 +1502,81 @@ public final class Builder extends IncrementalProjectBuilder {
 				classFiles.add(file);
 			}
 
-			public boolean run(final int kind) throws Exception {
+			public void removeClassFile(IFile file) {
+				removedClasses.add(classNameOf(file));
+			}
+
+			public void recheckAffectedBy(Set<String> packages) {
+				rulesChanged = true;
+				final Collection<String> affected = New.linkedList();
+				for (String className : dependencies.classesAffectedBy(packages)) {
+					final IFile file = classFileOf(className);
+					if (null != file) {
+						classFiles.add(file);
+						affected.add(className);
+					}
+				}
+				checkedClasses = affected;
+			}
+
+			/**
+			 * Finds the classes to check besides the changed ones, and clears
+			 * their markers. Counts the violations of the other classes
+			 * towards the limits and the summary. Runs on the build thread
+			 * before any scope is checked, so streamed markers are reconciled
+			 * with these.
+			 */
+			public void prepare(int buildKind) {
+				final int kind = fullCheck ? FULL_BUILD : buildKind;
+				if (FULL_BUILD == kind)
+					dependencies.clear();
+				else if (config.checkClasses && !rulesChanged)
+					addDependents();
+				if (null != cache) {
+					cache.useRules(config.rulesFingerPrint());
+					if (FULL_BUILD == kind) {
+						final Collection<String> present = New.hashSet();
+						for (IFile file : classFiles)
+							present.add(classNameOf(file));
+						cache.retainAll(present);
+					} else
+						for (String className : removedClasses)
+							cache.remove(className);
+				}
+
+				markers.clear(getProject(), summaryFilter(config.key()));
+				// Markers of classes whose sources did not change, or which are gone.
+				if (null != checkedClasses)
+					for (String className : checkedClasses)
+						markers.clear(getProject(), classFilter(config.key(), fromInternalName(className)));
+
+				if (FULL_BUILD == kind)
+					tally.clear();
+				else if (null != checkedClasses)
+					for (String className : checkedClasses)
+						tally.remove(className);
+				final int[] totals = tally.totals();
+				reported = totals[0];
+				suppressed = totals[1];
+				for (Map.Entry<String, Integer> e : tally.markedByClass().entrySet()) {
+					final String unit = unitOf(e.getKey());
+					final Integer inUnit = reportedByUnit.get(unit);
+					reportedByUnit.put(unit, (null == inUnit) ? e.getValue() : inUnit + e.getValue());
+				}
+			}
+
+			/**
+			 * Checks and extracts, but does not yet add markers unless
+			 * streaming. Returns true if extraction changed the rules, in which
+			 * case the caller must recheck what the new rules affect.
+			 */
+			public boolean check(int buildKind) throws Exception {
+				final int kind = fullCheck ? FULL_BUILD : buildKind;
+				final boolean extract = config.extractFromAnnotations && !rulesChanged;
 				final Checker checker = config.checkClasses ? new Checker(this, config.ruleSets) : null;
-				final RuleFilesManager rulesMgr = config.extractFromAnnotations ? new RuleFilesManager(
-						config.localRulesDir, config.globalRulesDir, false, FULL_BUILD == kind) : null;
-				final Extractor extractor = config.extractFromAnnotations ? new Extractor(rulesMgr) : null;
+				final RuleFilesManager rulesMgr = extract ? new RuleFilesManager(config.localRulesDir,
+						config.globalRulesDir, false, FULL_BUILD == kind) : null;
+				final Extractor extractor = extract ? new Extractor(rulesMgr) : null;
 
 				final ClassSet.Visitor checkerVisitor = (null == checker) ? null : checker.newClassSetVisitor();
 				final ClassSet.Visitor extractorVisitor = (null == extractor) ? null : extractor.newClassSetVisitor();
@@ -515,61 +1588,261 @@ public final class Builder extends IncrementalProjectBuilder {
 				else
 					classSetVisitor = new CombinedClassSetVisitor(extractorVisitor, checkerVisitor);
 
-				final AbstractClassFilesSet<Object> classFilesSet = new AbstractClassFilesSet<Object>() {
-					private IFile currentFile;
-					private String currentDir = "";
-					private String currentRootPath;
-					private RuleFilesManager scanningIn = (FULL_BUILD == kind) ? null : rulesMgr;
-					@Override public void accept(Visitor visitor) throws IOException {
-						final Iterator<IFile> files = classFiles.iterator();
-						accept(visitor, null, new Iterator<String>() {
-							@Override public boolean hasNext() {
-								return files.hasNext();
-							}
-							@Override public String next() {
-								currentFile = files.next();
-								final String path = currentFile.getProjectRelativePath().toPortableString();
-								final int posOfName = path.lastIndexOf('/') + 1;
-								final String newDir = (posOfName == 0) ? "" : path.substring(0, posOfName);
-								if (!newDir.equals(currentDir)) {
-									currentDir = newDir;
-									currentRootPath = rootPathOf(newDir);
-								}
-								return path.substring(currentRootPath.length());
+				final RuleFilesManager scanningIn = (FULL_BUILD == kind) ? null : rulesMgr;
+				final int threads = Math.min(Adapter.this.config.scanThreads, classFiles.size());
+				final long checkStarted = stats.start();
+				if (null != checker && null == extractor && threads > 1)
+					scanInParallel(threads);
+				else
+					new ClassFiles(classFiles, scanningIn).accept(classSetVisitor);
+				stats.stop(BuildStats.CHECK, checkStarted);
+				if (null == rulesMgr)
+					return false;
+				final long extractStarted = stats.start();
+				final boolean changed;
+				try {
+					changed = rulesMgr.finish();
+				} finally {
+					stats.stop(BuildStats.EXTRACT, extractStarted);
+				}
+				if (changed) {
+					extractedRules.add(config);
+					for (IFile file : classFiles)
+						extractedPackages.add(DependencyIndex.packageOf(classNameOf(file)));
+				}
+				return changed;
+			}
+
+			/**
+			 * Splits the class files into one chunk per thread, each scanned by
+			 * its own checker. Only used for scopes that do not extract, as the
+			 * extractor's rules manager is not thread-safe.
+			 */
+			private void scanInParallel(int threads) throws Exception {
+				final List<IFile> files = new ArrayList<IFile>(classFiles);
+				final int chunkSize = (files.size() + threads - 1) / threads;
+				final ExecutorService pool = Executors.newFixedThreadPool(threads);
+				try {
+					final Collection<Future<Object>> chunks = New.linkedList();
+					for (int i = 0; i < files.size(); i += chunkSize) {
+						final List<IFile> chunk = files.subList(i, Math.min(files.size(), i + chunkSize));
+						chunks.add(pool.submit(new Callable<Object>() {
+							@Override public Object call() throws Exception {
+								final Checker checker = new Checker(ClassPathSet.this, config.ruleSets);
+								new ClassFiles(chunk, null).accept(checker.newClassSetVisitor());
+								return null;
 							}
-							@Override public void remove() {
-								throw new UnsupportedOperationException();
+						}));
+					}
+					for (Future<Object> chunk : chunks)
+						await(chunk);
+				} finally {
+					pool.shutdownNow();
+				}
+			}
+
+			/**
+			 * Adds the classes referencing changed or removed classes, so their
+			 * markers reflect the current state of what they reference. Does
+			 * not follow references any further.
+			 */
+			private void addDependents() {
+				final Set<String> changed = New.hashSet();
+				for (IFile file : classFiles)
+					changed.add(classNameOf(file));
+				changed.addAll(removedClasses);
+				for (String className : removedClasses)
+					dependencies.remove(className);
+
+				final Set<String> dependents = New.hashSet();
+				for (String className : changed)
+					dependents.addAll(dependencies.dependentsOf(className));
+				dependents.removeAll(changed);
+				for (String className : dependents) {
+					final IFile file = classFileOf(className);
+					if (null != file) {
+						classFiles.add(file);
+						changed.add(className);
+					}
+				}
+				checkedClasses = changed;
+			}
+
+			private String classNameOf(IFile classFile) {
+				final String path = classFile.getProjectRelativePath().toPortableString();
+				return path.substring(rootPathOf(path).length(), path.length() - ".class".length());
+			}
+
+			private IFile classFileOf(String className) {
+				for (String root : rootPaths) {
+					final IFile file = getProject().getFile(root + className + ".class");
+					if (Adapter.this.config.scanOutputDirs ? file.getLocation().toFile().isFile() : file.exists())
+						return file;
+				}
+				return null;
+			}
+
+			private final class ClassFiles extends AbstractClassFilesSet<Object> {
+
+				private final Collection<IFile> files;
+				private final RuleFilesManager scanningIn;
+
+				private IFile currentFile;
+				private String currentDir = "";
+				private String currentRootPath;
+
+				public ClassFiles(Collection<IFile> files, RuleFilesManager scanningIn) {
+					this.files = files;
+					this.scanningIn = scanningIn;
+				}
+
+				@Override public void accept(Visitor visitor) throws IOException {
+					final Iterator<IFile> iter = files.iterator();
+					accept(visitor, null, new Iterator<String>() {
+						@Override public boolean hasNext() {
+							return iter.hasNext();
+						}
+						@Override public String next() {
+							currentFile = iter.next();
+							final String path = currentFile.getProjectRelativePath().toPortableString();
+							final int posOfName = path.lastIndexOf('/') + 1;
+							final String newDir = (posOfName == 0) ? "" : path.substring(0, posOfName);
+							if (!newDir.equals(currentDir)) {
+								currentDir = newDir;
+								currentRootPath = rootPathOf(newDir);
 							}
-						});
+							return path.substring(currentRootPath.length());
+						}
+						@Override public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					});
+				}
+
+				@Override protected void visit(Visitor visitor, String className, Object context) throws IOException {
+					classScanned();
+					if (null != scanningIn)
+						// Mark for deletion unless we find annotations; only in incremental builds.
+						scanningIn.scanning(className);
+					if (!config.extractFromAnnotations && stoppedChecking()) {
+						synchronized (ClassPathSet.this) {
+							skipped++;
+						}
+						return;
 					}
-					@Override protected void visit(Visitor visitor, String className, Object context)
-							throws IOException {
-						if (null != scanningIn)
-							// Mark for deletion unless we find annotations; only in incremental builds.
-							scanningIn.scanning(className);
-						acceptClassBytes(visitor, new ClassFile(className, currentFile.getLocation().toFile()));
+					// Read once for both our own parsing and JDepChk's.
+					final byte[] bytes = contentOf(currentFile.getLocation().toFile());
+					if (null != cache)
+						visitCached(visitor, className, bytes);
+					else {
+						if (config.checkClasses)
+							indexReferences(className, bytes);
+						acceptClassBytes(visitor, new LoadedClassFile(className, bytes));
 					}
-				};
-				classFilesSet.accept(classSetVisitor);
-				if (null != rulesMgr)
-					if (rulesMgr.finish())
-						return true;
-				addViolationMarkers();
-				return false;
+					classDone(className);
+				}
+
+				/**
+				 * Takes the violations and references of an unchanged class file
+				 * from the cache without parsing it. Otherwise checks it and
+				 * caches what was found, unless we hit --max-errors or did not
+				 * keep some of its violations.
+				 */
+				private void visitCached(Visitor visitor, String className, byte[] bytes) throws IOException {
+					final long hash = hashOf(bytes);
+					final ViolationCache.Entry cached = cache.get(className, hash);
+					if (null != cached) {
+						stats.count(BuildStats.CLASSES_CACHED);
+						dependencies.update(className, cached.references);
+						for (ViolationRecord v : cached.violations)
+							if (!report(v))
+								break;
+						return;
+					}
+					Collection<String> refs;
+					try {
+						refs = ClassRefs.read(bytes);
+						dependencies.update(className, refs);
+					} catch (IOException e) {
+						refs = null;
+						dependencies.remove(className);
+					}
+					acceptClassBytes(visitor, new LoadedClassFile(className, bytes));
+					if (null != refs && !stoppedChecking() && !hadSuppressed(className))
+						cache.put(className, hash, violationsOf(className), refs);
+				}
+			}
+
+			private byte[] contentOf(File file) throws IOException {
+				final byte[] bytes = new byte[(int) file.length()];
+				final DataInputStream in = new DataInputStream(new FileInputStream(file));
+				try {
+					in.readFully(bytes);
+				} finally {
+					in.close();
+				}
+				return bytes;
+			}
+
+			/** CRC32 of the bytes, with their length in the upper half. */
+			private long hashOf(byte[] bytes) {
+				final CRC32 crc = new CRC32();
+				crc.update(bytes);
+				return ((long) bytes.length << 32) | crc.getValue();
+			}
+
+			private void indexReferences(String className, byte[] bytes) {
+				try {
+					dependencies.update(className, ClassRefs.read(bytes));
+				} catch (IOException e) {
+					// Leave it to the checker to complain; we just cannot track its dependents.
+					dependencies.remove(className);
+				}
 			}
 
 			private String rootPathOf(String path) {
-				for (String root : rootPaths)
-					if (path.startsWith(root))
-						return root;
-				throw new IllegalArgumentException(path);
+				final String root = Adapter.this.config.rootPathOf(config, path);
+				if (null == root)
+					throw new IllegalArgumentException(path);
+				return root;
 			}
 
+			/** Synchronized as we may be scanning on multiple threads. */
 			@Override public boolean report(Violation v) {
-				if (++errorsFound > Adapter.this.config.maxErrors)
-					return false;
+				return report(ViolationRecord.of(v));
+			}
+
+			private synchronized Collection<ViolationRecord> violationsOf(String className) {
+				final Collection<ViolationRecord> found = violations.get(className);
+				if (null == found)
+					return Collections.emptyList();
+				return new ArrayList<ViolationRecord>(found);
+			}
+
+			/**
+			 * Keeps the violation unless this scope or its source file already
+			 * has enough, in which case we just count it. Tells the checker to
+			 * stop once all scopes together hit --max-errors.
+			 */
+			private synchronized boolean report(ViolationRecord v) {
+				stats.count(BuildStats.VIOLATIONS);
+				final Config cfg = Adapter.this.config;
 				final String className = v.fromClassName;
-				Collection<Violation> found = violations.get(className);
+				final String unit = unitOf(className);
+				final Integer inUnit = reportedByUnit.get(unit);
+				if ((0 < cfg.maxScopeErrors && reported >= cfg.maxScopeErrors)
+						|| (0 < cfg.maxUnitErrors && null != inUnit && inUnit >= cfg.maxUnitErrors)) {
+					suppressed++;
+					classesWithSuppressed.add(className);
+					tally.count(className, false);
+					return true;
+				}
+				if (errorsFound.incrementAndGet() > cfg.maxErrors)
+					return false;
+				reported++;
+				reportedByUnit.put(unit, (null == inUnit) ? 1 : inUnit + 1);
+				tally.count(className, true);
+				Collection<ViolationRecord> found = violations.get(className);
 				if (null == found) {
 					found = New.linkedList();
 					violations.put(className, found);
@@ -578,84 +1851,426 @@ public final class Builder extends IncrementalProjectBuilder {
 				return true;
 			}
 
-			private void addViolationMarkers() throws Exception {
+			/** The outer class of a nested class, which tells its source file. */
+			private String unitOf(String className) {
+				final int posOfInner = className.indexOf('$');
+				return (posOfInner < 0) ? className : className.substring(0, posOfInner);
+			}
+
+			private synchronized boolean hadSuppressed(String className) {
+				return classesWithSuppressed.contains(className);
+			}
+
+			private boolean stoppedChecking() {
+				return errorsFound.get() > Adapter.this.config.maxErrors;
+			}
+
+			/**
+			 * Tells on the project how many violations of the scope were found
+			 * but not marked, and how many classes were not checked at all.
+			 */
+			private void addSummaryMarker() {
+				if (0 == suppressed && 0 == skipped)
+					return;
+				final StringBuilder msg = new StringBuilder("Dependency check of ").append(config.key()).append(':');
+				if (0 < suppressed)
+					msg.append(' ').append(suppressed).append(" more violations found but not marked (").append(
+							reported).append(" marked).");
+				if (0 < skipped)
+					msg.append(' ').append(skipped).append(" classes not checked after reaching --max-errors.");
+				final Map<String, Object> attrs = summaryFilter(config.key());
+				attrs.put(IMarker.MESSAGE, msg.toString());
+				attrs.put(IMarker.SEVERITY, IMarker.SEVERITY_WARNING);
+				markers.add(getProject(), attrs);
+			}
+
+			/**
+			 * Notes that a class was fully scanned. When streaming, hands the
+			 * violations of every so many such classes to the build thread.
+			 */
+			private void classDone(String className) {
+				if (0 == streamEvery)
+					return;
+				final Map<String, Collection<ViolationRecord>> batch;
+				synchronized (this) {
+					if (violations.containsKey(className))
+						doneClasses.add(className);
+					if (doneClasses.size() < streamEvery)
+						return;
+					batch = New.hashMap();
+					for (String done : doneClasses)
+						batch.put(done, violations.remove(done));
+					doneClasses.clear();
+				}
+				final Callable<Object> emit = new Callable<Object>() {
+					@Override public Object call() throws Exception {
+						addViolationMarkers(batch, scanProgress.newChild(0));
+						final long markersStarted = stats.start();
+						markers.flushAdded(getProject(), null);
+						stats.stop(BuildStats.MARKERS, markersStarted);
+						return null;
+					}
+				};
+				try {
+					if (Thread.currentThread() == buildThread)
+						emit.call();
+					else
+						streamed.put(emit);
+				} catch (RuntimeException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			private void addViolationMarkers(IProgressMonitor monitor) throws CoreException {
+				doneClasses.clear();
+				addViolationMarkers(violations, monitor);
+				violations.clear();
+			}
+
+			private void addViolationMarkers(Map<String, Collection<ViolationRecord>> violations,
+					IProgressMonitor monitor) throws CoreException {
+				final SubMonitor placing = SubMonitor.convert(monitor);
 				final IJavaProject javaProject = JavaCore.create(getProject());
-				for (Map.Entry<String, Collection<Violation>> e : violations.entrySet()) {
-					final String internalClassName = e.getKey();
-					final String className = fromInternalName(internalClassName);
+				// Group by compilation unit so we only search each unit once.
+				final Map<ICompilationUnit, UnitViolations> units = new LinkedHashMap<ICompilationUnit, UnitViolations>();
+				for (Map.Entry<String, Collection<ViolationRecord>> e : violations.entrySet()) {
+					checkCanceled();
+					final String className = fromInternalName(e.getKey());
 					final IType type = findType(javaProject, className);
 					if (null == type)
 						continue;
 					final ICompilationUnit unit = type.getCompilationUnit();
 					if (null == unit)
 						continue;
+					UnitViolations found = units.get(unit);
+					if (null == found) {
+						found = new UnitViolations(unit);
+						units.put(unit, found);
+					}
+					found.add(javaProject, type, className, e.getValue());
+				}
+				if (Adapter.this.config.asyncMarkers) {
+					for (UnitViolations unit : units.values())
+						unit.addPendingMarkers(markers);
+					if (!units.isEmpty())
+						placementJob().enqueue(units.values());
+				} else {
+					placing.setWorkRemaining(units.size());
+					for (UnitViolations unit : units.values()) {
+						unit.locate(placing.newChild(1));
+						unit.addMarkers(markers);
+					}
+				}
+			}
+
+			/**
+			 * The violations of all the classes in a compilation unit, resolved
+			 * to the Java elements they reference. All the references are then
+			 * found with a single search over the unit.
+			 */
+			private final class UnitViolations {
+
+				private final ICompilationUnit unit;
+				private final IResource file;
+				private final Collection<TargetGroup> groups = New.linkedList();
+				private final Map<IJavaElement, Collection<Target>> targets = New.hashMap();
+				private final Map<String, Collection<IJavaElement>> targetsByName = New.hashMap();
+				private final Collection<Location> located = New.linkedList();
+
+				public UnitViolations(ICompilationUnit unit) {
+					this.unit = unit;
+					this.file = unit.getResource();
+				}
+
+				public void add(IJavaProject javaProject, IType type, String fromClassName,
+						Collection<ViolationRecord> classViolations) throws CoreException {
 
 					// Avoid reporting references to the same element twice (classes in particular).
 					final Set<IJavaElement> seen = New.hashSet();
 
-					// Add untargeted markers only if no targeted marker was found for a given target type.
-					String lastToClassName = null;
-					String lastMessage = null;
-					boolean hadMatch = true;
-
-					final IResource file = unit.getResource();
-					for (final Violation v : e.getValue()) {
+					TargetGroup group = null;
+					for (ViolationRecord v : classViolations) {
 						final String toClassName = fromInternalName(v.toClassName);
 						final String msg = buildMessage(v, toClassName);
-
-						if (!toClassName.equals(lastToClassName)) {
-							if (!hadMatch)
-								addUntargetedMarker(type, file, lastMessage);
-							lastToClassName = toClassName;
-							lastMessage = msg;
-							hadMatch = false;
+						if (null == group || !toClassName.equals(group.toClassName)) {
+							group = new TargetGroup(type, fromClassName, toClassName, msg);
+							groups.add(group);
 						}
-
-						// Try to use Java search.
-						final boolean[] foundIt = { false };
 						final IType toType = findType(javaProject, toClassName);
-						if (null != toType) {
-							final IJavaElement toElt = findElement(toType, v);
-							if (!seen.add(toElt))
-								continue;
-
-							final SearchPattern pat = SearchPattern.createPattern(toElt,
-									IJavaSearchConstants.REFERENCES);
-							final IJavaSearchScope scope = SearchEngine.createJavaSearchScope(
-									new IJavaElement[] { unit }, IJavaSearchScope.SOURCES);
-							final String fromClassName = fromInternalName(v.fromClassName);
-							final SearchRequestor requestor = new SearchRequestor() {
-
-								@Override public void acceptSearchMatch(SearchMatch match) throws CoreException {
-									final Object elt = match.getElement();
-									if (elt instanceof IImportDeclaration)
-										return;
-									final String eltClassName = fromInternalName(classNameOf(elt));
-									if (null == eltClassName || eltClassName.equals(fromClassName)) {
-										addMarker(file, msg, IMarker.SEVERITY_ERROR, //
-												match.getOffset(), match.getLength());
-										foundIt[0] = true;
-									}
-								}
+						if (null == toType)
+							continue;
+						final IJavaElement toElt = findElement(toType, v);
+						if (!seen.add(toElt))
+							continue;
+						Collection<Target> found = targets.get(toElt);
+						if (null == found) {
+							found = New.linkedList();
+							targets.put(toElt, found);
+							addNamed(toElt);
+						}
+						found.add(new Target(group, msg));
+					}
+				}
 
-								private String classNameOf(Object element) {
-									if (element instanceof IType)
-										return ((IType) element).getFullyQualifiedName();
-									if (element instanceof IMember)
-										return ((IMember) element).getDeclaringType().getFullyQualifiedName();
-									return null;
+				/** Finds the source ranges of the violations, without touching markers. */
+				public void locate(IProgressMonitor monitor) throws CoreException {
+					located.clear();
+					for (TargetGroup group : groups)
+						group.hadMatch = false;
+
+					SearchPattern pat = null;
+					for (IJavaElement toElt : targets.keySet()) {
+						final SearchPattern eltPat = SearchPattern.createPattern(toElt, IJavaSearchConstants.REFERENCES);
+						if (null != eltPat)
+							pat = (null == pat) ? eltPat : SearchPattern.createOrPattern(pat, eltPat);
+					}
+					if (null == pat)
+						return;
+					final IJavaSearchScope scope = SearchEngine.createJavaSearchScope(new IJavaElement[] { unit },
+							IJavaSearchScope.SOURCES);
+					final SearchRequestor requestor = new SearchRequestor() {
+
+						@Override public void acceptSearchMatch(SearchMatch match) throws CoreException {
+							final Object elt = match.getElement();
+							if (elt instanceof IImportDeclaration)
+								return;
+							final String eltClassName = fromInternalName(classNameOf(elt));
+							for (Target target : targetsOf(match)) {
+								if (null == eltClassName || eltClassName.equals(target.group.fromClassName)) {
+									located.add(new Location(target.group.fromClassName, target.msg,
+											match.getOffset(), match.getLength()));
+									target.group.hadMatch = true;
 								}
+							}
+						}
+
+						private String classNameOf(Object element) {
+							if (element instanceof IType)
+								return ((IType) element).getFullyQualifiedName();
+							if (element instanceof IMember)
+								return ((IMember) element).getDeclaringType().getFullyQualifiedName();
+							return null;
+						}
+
+					};
+					final SearchEngine search = new SearchEngine();
+					final long searchStarted = stats.start();
+					try {
+						search.search(pat, new SearchParticipant[] { SearchEngine.getDefaultSearchParticipant() },
+								scope, requestor, monitor);
+					} finally {
+						stats.stop(BuildStats.SEARCH, searchStarted);
+						stats.count(BuildStats.SEARCHES);
+					}
+				}
+
+				public void addMarkers(MarkerBatch batch) {
+					addMarkers(batch, null);
+				}
+
+				/** Adds the markers of the given classes only, or all if null. */
+				private void addMarkers(MarkerBatch batch, Set<String> ofClasses) {
+					for (Location loc : located)
+						if (null == ofClasses || ofClasses.contains(loc.fromClassName))
+							batch.add(file, markerAttributes(config.key(), loc.fromClassName, loc.msg,
+									IMarker.SEVERITY_ERROR, loc.offs, loc.len));
+
+					// Add untargeted markers only if no targeted marker was found for a given target type.
+					for (TargetGroup group : groups)
+						if (!group.hadMatch && (null == ofClasses || ofClasses.contains(group.fromClassName)))
+							addUntargetedMarker(batch, group, file);
+				}
+
+				/**
+				 * Quickly marks each violated target class on the declaration of
+				 * the violating class. These are replaced by
+				 * {@link #refinePendingMarkers(IProgressMonitor)} later.
+				 */
+				public void addPendingMarkers(MarkerBatch batch) {
+					for (TargetGroup group : groups) {
+						final int[] range = declarationRangeOf(group.type);
+						final Map<String, Object> attrs = markerAttributes(config.key(), group.fromClassName,
+								group.msg, IMarker.SEVERITY_ERROR, range[0], range[1]);
+						attrs.put(PENDING_ATTR, true);
+						attrs.put(BUILD_ATTR, buildId);
+						batch.add(file, attrs);
+					}
+				}
+
+				/**
+				 * Replaces the pending markers by precisely located ones, for
+				 * each class whose pending markers from this build are not gone.
+				 * If they are, a later build already superseded them. Pending
+				 * markers the later build added, or kept and stamped anew, are
+				 * left to its own refinement.
+				 */
+				public void refinePendingMarkers(IProgressMonitor monitor) throws CoreException {
+					if (!file.exists())
+						return;
+					locate(monitor);
+					final MarkerBatch batch = new MarkerBatch(MARKER_TYPE, IMarker.MESSAGE, IMarker.CHAR_START,
+							IMarker.CHAR_END);
+					file.getWorkspace().run(new IWorkspaceRunnable() {
+						@Override public void run(IProgressMonitor monitor) throws CoreException {
+							final Set<String> pendingClasses = New.hashSet();
+							for (TargetGroup group : groups) {
+								if (pendingClasses.contains(group.fromClassName))
+									continue;
+								final Map<String, Object> pending = classFilter(config.key(), group.fromClassName);
+								pending.put(PENDING_ATTR, true);
+								pending.put(BUILD_ATTR, buildId);
+								if (0 == batch.find(file, pending).length)
+									continue;
+								pendingClasses.add(group.fromClassName);
+								batch.clear(file, pending);
+							}
+							if (pendingClasses.isEmpty())
+								return;
+							addMarkers(batch, pendingClasses);
+							batch.write();
+						}
+					}, file, IWorkspace.AVOID_UPDATE, monitor);
+				}
+
+				public boolean isFromSameBuildAs(UnitViolations other) {
+					return adapter() == other.adapter();
+				}
+
+				private Adapter adapter() {
+					return Adapter.this;
+				}
 
-							};
-							final SearchEngine search = new SearchEngine();
-							search.search(pat, new SearchParticipant[] { SearchEngine.getDefaultSearchParticipant() },
-									scope, requestor, null);
+				/**
+				 * Takes over the violations of another batch of classes in the
+				 * same unit, streamed by the same build.
+				 */
+				public void absorb(UnitViolations other) {
+					groups.addAll(other.groups);
+					for (Map.Entry<IJavaElement, Collection<Target>> e : other.targets.entrySet()) {
+						final Collection<Target> found = targets.get(e.getKey());
+						if (null != found)
+							found.addAll(e.getValue());
+						else {
+							targets.put(e.getKey(), e.getValue());
+							addNamed(e.getKey());
 						}
-						hadMatch |= foundIt[0];
 					}
+				}
+
+				private void addNamed(IJavaElement toElt) {
+					final String key = nameKey(toElt.getElementType(), toElt.getElementName());
+					Collection<IJavaElement> named = targetsByName.get(key);
+					if (null == named) {
+						named = New.linkedList();
+						targetsByName.put(key, named);
+					}
+					named.add(toElt);
+				}
 
-					if (null != lastToClassName && !hadMatch)
-						addUntargetedMarker(type, file, lastMessage);
+				/** Identifies the queued refinement for this unit and scope. */
+				public String key() {
+					return config.key() + ':' + file.getFullPath();
+				}
+
+				/**
+				 * The or-ed pattern does not tell us which of its parts matched,
+				 * so we look at the kind of match and the referenced name in the
+				 * source. Only if that is ambiguous do we resort to codeSelect.
+				 */
+				private Collection<Target> targetsOf(SearchMatch match) throws JavaModelException {
+					final int kind;
+					if (match instanceof MethodReferenceMatch)
+						kind = IJavaElement.METHOD;
+					else if (match instanceof FieldReferenceMatch)
+						kind = IJavaElement.FIELD;
+					else
+						kind = IJavaElement.TYPE;
+
+					Collection<IJavaElement> candidates = null;
+					final IBuffer buffer = unit.getBuffer();
+					if (null != buffer) {
+						final String text = buffer.getText(match.getOffset(), match.getLength());
+						candidates = targetsByName.get(nameKey(kind, referencedName(kind, text)));
+					}
+					if (null == candidates) {
+						candidates = New.linkedList();
+						for (IJavaElement toElt : targets.keySet())
+							if (toElt.getElementType() == kind)
+								candidates.add(toElt);
+					}
+					if (candidates.size() > 1)
+						for (IJavaElement selected : unit.codeSelect(match.getOffset(), match.getLength()))
+							if (candidates.contains(selected)) {
+								candidates = Collections.singleton(selected);
+								break;
+							}
+
+					final Collection<Target> found = New.linkedList();
+					for (IJavaElement toElt : candidates)
+						found.addAll(targets.get(toElt));
+					return found;
+				}
+
+				private String referencedName(int kind, String text) {
+					String name = text;
+					if (kind == IJavaElement.METHOD) {
+						final int posOfArgs = name.indexOf('(');
+						if (posOfArgs >= 0)
+							name = name.substring(0, posOfArgs);
+					}
+					final int posOfTypeArgs = name.indexOf('<');
+					if (posOfTypeArgs >= 0)
+						name = name.substring(0, posOfTypeArgs);
+					return name.substring(name.lastIndexOf('.') + 1).trim();
+				}
+
+				private String nameKey(int kind, String name) {
+					return kind + ":" + name;
+				}
+			}
+
+			/** Violations of a class referencing the same target class. */
+			private final class TargetGroup {
+
+				final IType type;
+				final String fromClassName;
+				final String toClassName;
+				final String msg;
+				boolean hadMatch = false;
+
+				public TargetGroup(IType type, String fromClassName, String toClassName, String msg) {
+					this.type = type;
+					this.fromClassName = fromClassName;
+					this.toClassName = toClassName;
+					this.msg = msg;
+				}
+			}
+
+			private final class Target {
+
+				final TargetGroup group;
+				final String msg;
+
+				public Target(TargetGroup group, String msg) {
+					this.group = group;
+					this.msg = msg;
+				}
+			}
+
+			private final class Location {
+
+				final String fromClassName;
+				final String msg;
+				final int offs;
+				final int len;
+
+				public Location(String fromClassName, String msg, int offs, int len) {
+					this.fromClassName = fromClassName;
+					this.msg = msg;
+					this.offs = offs;
+					this.len = len;
 				}
 			}
 
@@ -663,20 +2278,23 @@ public final class Builder extends IncrementalProjectBuilder {
 			 * No or unsuccessful Java search, so just annotate the class
 			 * declaration.
 			 */
-			protected void addUntargetedMarker(IType type, IResource file, String msg) throws JavaModelException,
-					CoreException {
+			protected void addUntargetedMarker(MarkerBatch batch, TargetGroup group, IResource file) {
+				final int[] range = declarationRangeOf(group.type);
+				batch.add(file, markerAttributes(config.key(), group.fromClassName, group.msg
+						+ " (No direct source location found.)", IMarker.SEVERITY_ERROR, range[0], range[1]));
+			}
+
+			/** Offset and length of the type's name, or else its package declaration. */
+			private int[] declarationRangeOf(IType type) {
 				try {
 					final ISourceRange range = type.getNameRange();
-					addMarker(file, msg + " (No direct source location found.)", IMarker.SEVERITY_ERROR, //
-							range.getOffset(), range.getLength());
+					return new int[] { range.getOffset(), range.getLength() };
 				} catch (JavaModelException jme) {
 					try {
 						final ISourceRange range = type.getCompilationUnit().getPackageDeclarations()[0].getNameRange();
-						addMarker(file, msg + " (No direct source location found.)", IMarker.SEVERITY_ERROR, //
-								range.getOffset(), range.getLength());
+						return new int[] { range.getOffset(), range.getLength() };
 					} catch (JavaModelException jme2) {
-						addMarker(file, msg + " (No direct source location found.)", IMarker.SEVERITY_ERROR, //
-								0, 1);
+						return new int[] { 0, 1 };
 					}
 				}
 			}
@@ -687,18 +2305,18 @@ public final class Builder extends IncrementalProjectBuilder {
 				return internalClassName.replace('/', '.').replace('$', '.');
 			}
 
-			protected String buildMessage(final Violation v, String toClassName) {
+			protected String buildMessage(final ViolationRecord v, String toClassName) {
 				final StringBuilder sb = new StringBuilder("Access to ").append(toClassName);
 				if (null != v.toElementName)
 					sb.append(".").append(v.toElementName);
 				sb.append(" denied");
 				String conjunction = " by";
-				final String ruleMsg = v.scope.name();
+				final String ruleMsg = v.scopeName;
 				if (null != ruleMsg && !ruleMsg.isEmpty()) {
 					sb.append(conjunction).append(" scope '").append(ruleMsg).append("'");
 					conjunction = " in";
 				}
-				final String setName = v.ruleSet.name();
+				final String setName = v.ruleSetName;
 				if (null != setName && !setName.isEmpty() && !"<anonymous ruleset>".equals(setName))
 					sb.append(conjunction).append(" ruleset '").append(setName).append("'");
 				sb.append('.');
@@ -706,36 +2324,31 @@ public final class Builder extends IncrementalProjectBuilder {
 			}
 
 			private IType findType(IJavaProject javaProject, String className) throws CoreException {
-				final IType namedType = javaProject.findType(className.replace('$', '.'));
+				final long started = stats.start();
+				try {
+					return lookUpType(javaProject, className);
+				} finally {
+					stats.stop(BuildStats.TYPE_LOOKUP, started);
+					stats.count(BuildStats.TYPE_LOOKUPS);
+				}
+			}
+
+			private IType lookUpType(IJavaProject javaProject, String className) throws CoreException {
+				final TypeCache types = Activator.typeCache();
+				final IType namedType = types.findType(javaProject, className.replace('$', '.'));
 				if (null != namedType)
 					return namedType;
 				final int posOfInner = className.indexOf('$');
 				if (posOfInner < 0)
 					return null;
-				return javaProject.findType(className.substring(0, posOfInner));
+				return types.findType(javaProject, className.substring(0, posOfInner));
 			}
 
-			protected IJavaElement findElement(final IType inType, final Violation v) throws JavaModelException {
+			protected IJavaElement findElement(final IType inType, final ViolationRecord v) throws JavaModelException {
 				if (null != v.toElementName) {
-					final IJavaElement[] children = inType.getChildren();
-					// TODO There may be a better way than this.
-					for (IJavaElement elt : children) {
-						if (elt instanceof IMember) {
-							final IMember mem = (IMember) elt;
-							if (v.toElementName.equals(mem.getElementName())) {
-								if (mem instanceof IMethod) {
-									final IMethod mtd = (IMethod) mem;
-									final String sig = mtd.getSignature();
-									if (v.toElementDesc.equals(sig))
-										return mtd;
-								} else if (mem instanceof IField) {
-									final IField fld = (IField) mem;
-									if (v.toElementDesc.equals(fld.getTypeSignature()))
-										return fld;
-								}
-							}
-						}
-					}
+					final IMember member = membersOf(inType).get(memberKey(v.toElementName, v.toElementDesc));
+					if (null != member)
+						return member;
 				}
 				return inType;
 			}
@@ -744,12 +2357,34 @@ public final class Builder extends IncrementalProjectBuilder {
 
 	}
 
-	private void addMarker(IResource file, String message, int severity, int offs, int len) throws CoreException {
-		final IMarker marker = file.createMarker(MARKER_TYPE);
-		marker.setAttribute(IMarker.MESSAGE, message);
-		marker.setAttribute(IMarker.SEVERITY, severity);
-		marker.setAttribute(IMarker.CHAR_START, offs);
-		marker.setAttribute(IMarker.CHAR_END, offs + len);
+	private Map<String, Object> markerAttributes(String scopeKey, String className, String message, int severity,
+			int offs, int len) {
+		final Map<String, Object> attrs = New.hashMap();
+		attrs.put(IMarker.MESSAGE, message);
+		attrs.put(IMarker.SEVERITY, severity);
+		attrs.put(IMarker.CHAR_START, offs);
+		attrs.put(IMarker.CHAR_END, offs + len);
+		attrs.put(SCOPE_ATTR, scopeKey);
+		attrs.put(CLASS_ATTR, className);
+		return attrs;
+	}
+
+	private Map<String, Object> scopeFilter(String scopeKey) {
+		final Map<String, Object> attrs = New.hashMap();
+		attrs.put(SCOPE_ATTR, scopeKey);
+		return attrs;
+	}
+
+	private Map<String, Object> summaryFilter(String scopeKey) {
+		final Map<String, Object> attrs = scopeFilter(scopeKey);
+		attrs.put(SUMMARY_ATTR, true);
+		return attrs;
+	}
+
+	private Map<String, Object> classFilter(String scopeKey, String className) {
+		final Map<String, Object> attrs = scopeFilter(scopeKey);
+		attrs.put(CLASS_ATTR, className);
+		return attrs;
 	}
 
 	private void deleteMarkers(IResource res) throws CoreException {
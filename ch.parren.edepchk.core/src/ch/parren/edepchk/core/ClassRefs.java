@@ -0,0 +1,130 @@
+package ch.parren.edepchk.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Set;
+
+import ch.parren.java.lang.New;
+
+/**
+ * Reads the names of the classes a class file refers to from its constant
+ * pool and its field and method descriptors. Does not look at generic
+ * signatures or annotations.
+ */
+final class ClassRefs {
+
+	private ClassRefs() {}
+
+	/** Returns the internal names of the classes referenced by the class bytes. */
+	public static Set<String> read(byte[] bytes) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private static Set<String> read(DataInputStream in) throws IOException {
+		if (0xCAFEBABE != in.readInt())
+			throw new IOException("Not a class file");
+		in.readUnsignedShort(); // minor
+		in.readUnsignedShort(); // major
+
+		final int count = in.readUnsignedShort();
+		final String[] utf8s = new String[count];
+		final int[] classNames = new int[count]; // by pool index, 0 if not a class
+		final int[] descriptors = new int[count];
+		int nDescriptors = 0;
+		for (int i = 1; i < count; i++) {
+			final int tag = in.readUnsignedByte();
+			switch (tag) {
+			case 1: // Utf8
+				utf8s[i] = in.readUTF();
+				break;
+			case 7: // Class
+				classNames[i] = in.readUnsignedShort();
+				break;
+			case 16: // MethodType
+				descriptors[nDescriptors++] = in.readUnsignedShort();
+				break;
+			case 12: // NameAndType
+				in.readUnsignedShort();
+				descriptors[nDescriptors++] = in.readUnsignedShort();
+				break;
+			case 8: // String
+			case 19: // Module
+			case 20: // Package
+				in.skipBytes(2);
+				break;
+			case 15: // MethodHandle
+				in.skipBytes(3);
+				break;
+			case 3: // Integer
+			case 4: // Float
+			case 9: // Fieldref
+			case 10: // Methodref
+			case 11: // InterfaceMethodref
+			case 17: // Dynamic
+			case 18: // InvokeDynamic
+				in.skipBytes(4);
+				break;
+			case 5: // Long
+			case 6: // Double
+				in.skipBytes(8);
+				i++; // takes two slots
+				break;
+			default:
+				throw new IOException("Unknown constant pool tag " + tag);
+			}
+		}
+
+		in.readUnsignedShort(); // access
+		final int thisClass = in.readUnsignedShort();
+		in.readUnsignedShort(); // super, already a class constant
+		in.skipBytes(2 * in.readUnsignedShort()); // interfaces, likewise
+
+		final Set<String> refs = New.hashSet();
+		for (int members = 0; members < 2; members++) { // fields, then methods
+			final int n = in.readUnsignedShort();
+			for (int i = 0; i < n; i++) {
+				in.readUnsignedShort(); // access
+				in.readUnsignedShort(); // name
+				addFromDescriptor(refs, utf8s[in.readUnsignedShort()]);
+				skipAttributes(in);
+			}
+		}
+
+		for (int i = 1; i < count; i++) {
+			if (0 == classNames[i])
+				continue;
+			final String name = utf8s[classNames[i]];
+			if (name.startsWith("["))
+				addFromDescriptor(refs, name);
+			else
+				refs.add(name);
+		}
+		for (int i = 0; i < nDescriptors; i++)
+			addFromDescriptor(refs, utf8s[descriptors[i]]);
+		refs.remove(utf8s[classNames[thisClass]]);
+		return refs;
+	}
+
+	private static void skipAttributes(DataInputStream in) throws IOException {
+		final int n = in.readUnsignedShort();
+		for (int i = 0; i < n; i++) {
+			in.readUnsignedShort(); // name
+			in.skipBytes(in.readInt());
+		}
+	}
+
+	private static void addFromDescriptor(Set<String> refs, String desc) {
+		if (null == desc)
+			return;
+		int i = desc.indexOf('L');
+		while (i >= 0) {
+			final int end = desc.indexOf(';', i);
+			if (end < 0)
+				return;
+			refs.add(desc.substring(i + 1, end));
+			i = desc.indexOf('L', end);
+		}
+	}
+
+}
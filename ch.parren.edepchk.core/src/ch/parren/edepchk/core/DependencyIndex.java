@@ -0,0 +1,152 @@
+package ch.parren.edepchk.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import ch.parren.java.lang.New;
+
+/**
+ * Which classes of a scope reference which other classes, so an incremental
+ * build can recheck the dependents of changed and removed classes. Class names
+ * are internal names. Thread-safe, as scopes may be scanned on multiple
+ * threads.
+ */
+final class DependencyIndex {
+
+	/** Bump this whenever the file format changes. */
+	private static final int VERSION = 1;
+
+	private final Map<String, Set<String>> referencesOf = New.hashMap();
+	private final Map<String, Set<String>> dependentsOf = New.hashMap();
+	private boolean dirty = false;
+
+	public synchronized void clear() {
+		dirty |= !referencesOf.isEmpty();
+		referencesOf.clear();
+		dependentsOf.clear();
+	}
+
+	/** Replaces what we know about the references of the class. */
+	public synchronized void update(String className, Collection<String> references) {
+		remove(className);
+		final Set<String> refs = New.hashSet();
+		refs.addAll(references);
+		referencesOf.put(className, refs);
+		for (String ref : refs) {
+			Set<String> dependents = dependentsOf.get(ref);
+			if (null == dependents) {
+				dependents = New.hashSet();
+				dependentsOf.put(ref, dependents);
+			}
+			dependents.add(className);
+		}
+		dirty = true;
+	}
+
+	public synchronized void remove(String className) {
+		final Set<String> refs = referencesOf.remove(className);
+		if (null == refs)
+			return;
+		for (String ref : refs) {
+			final Set<String> dependents = dependentsOf.get(ref);
+			dependents.remove(className);
+			if (dependents.isEmpty())
+				dependentsOf.remove(ref);
+		}
+		dirty = true;
+	}
+
+	/** The classes referencing the given one. */
+	public synchronized Set<String> dependentsOf(String className) {
+		final Set<String> dependents = dependentsOf.get(className);
+		if (null == dependents)
+			return Collections.emptySet();
+		final Set<String> copy = New.hashSet();
+		copy.addAll(dependents);
+		return copy;
+	}
+
+	/**
+	 * The classes in any of the packages, and the classes referencing any
+	 * class in them. Package names are internal names, too.
+	 */
+	public synchronized Set<String> classesAffectedBy(Set<String> packages) {
+		final Set<String> affected = New.hashSet();
+		for (String className : referencesOf.keySet())
+			if (packages.contains(packageOf(className)))
+				affected.add(className);
+		for (Map.Entry<String, Set<String>> e : dependentsOf.entrySet())
+			if (packages.contains(packageOf(e.getKey())))
+				affected.addAll(e.getValue());
+		return affected;
+	}
+
+	/** The internal name of the package of a class, empty for the default package. */
+	static String packageOf(String className) {
+		final int pos = className.lastIndexOf('/');
+		return (pos < 0) ? "" : className.substring(0, pos);
+	}
+
+	/** Loads a saved index, or leaves me empty if it is missing or unreadable. */
+	public synchronized void load(File file) {
+		if (!file.exists())
+			return;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (VERSION != in.readInt())
+					return;
+				final int nClasses = in.readInt();
+				for (int i = 0; i < nClasses; i++) {
+					final String className = in.readUTF();
+					final int nRefs = in.readInt();
+					final Collection<String> refs = New.arrayList();
+					for (int j = 0; j < nRefs; j++)
+						refs.add(in.readUTF());
+					update(className, refs);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			referencesOf.clear();
+			dependentsOf.clear();
+		}
+		dirty = false;
+	}
+
+	/** Saves the index if it changed since it was loaded or last saved. */
+	public synchronized void save(File file) {
+		if (!dirty)
+			return;
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(VERSION);
+				out.writeInt(referencesOf.size());
+				for (Map.Entry<String, Set<String>> e : referencesOf.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue().size());
+					for (String ref : e.getValue())
+						out.writeUTF(ref);
+				}
+			} finally {
+				out.close();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			file.delete();
+		}
+	}
+
+}
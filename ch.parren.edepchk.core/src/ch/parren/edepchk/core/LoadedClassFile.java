@@ -0,0 +1,33 @@
+package ch.parren.edepchk.core;
+
+import java.io.IOException;
+
+import ch.parren.jdepchk.classes.ClassBytes;
+import ch.parren.jdepchk.classes.ClassFile;
+
+/**
+ * A class file already read into memory, so JDepChk checks the same bytes we
+ * read references and hashes from instead of reading the file again, as
+ * {@link ClassFile} would.
+ */
+final class LoadedClassFile implements ClassBytes {
+
+	private final String compiledClassName;
+	private final byte[] bytes;
+
+	public LoadedClassFile(String compiledClassName, byte[] bytes) {
+		this.compiledClassName = compiledClassName;
+		this.bytes = bytes;
+	}
+
+	@Override public String compiledClassName() {
+		return compiledClassName;
+	}
+
+	@Override public byte[] bytes() throws IOException {
+		return bytes;
+	}
+
+	@Override public void close() throws IOException {}
+
+}
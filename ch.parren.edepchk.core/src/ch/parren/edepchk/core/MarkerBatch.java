@@ -0,0 +1,256 @@
+package ch.parren.edepchk.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.core.resources.IMarker;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspace;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
+
+import ch.parren.java.lang.New;
+
+/**
+ * Collects marker changes and writes them in one go, so listeners see a single
+ * marker delta rather than one per marker and attribute.
+ * <p>
+ * Cleared markers are not simply deleted. They are reconciled with the newly
+ * added ones by their identifying attributes (typically message and range):
+ * matching markers are kept, and only updated if other attributes differ. So
+ * rebuilding unchanged violations causes no marker changes at all.
+ * <p>
+ * Added markers can also be written in several goes using
+ * {@link #flushAdded(IResource, IProgressMonitor)}, so they need not all be
+ * held in memory. Stale markers are then only deleted by the final
+ * {@link #flush(IResource, IProgressMonitor)}. Clears must precede the first
+ * write of the adds they are to be reconciled with.
+ */
+final class MarkerBatch {
+
+	private final String markerType;
+	private final String[] identity;
+	private final Map<IResource, Collection<Map<String, Object>>> cleared = //
+	new LinkedHashMap<IResource, Collection<Map<String, Object>>>();
+	private final Map<IResource, Collection<Map<String, Object>>> added = //
+	new LinkedHashMap<IResource, Collection<Map<String, Object>>>();
+
+	/** Cleared markers not yet reconciled, by resource and identity. */
+	private final Map<IResource, Map<String, Collection<IMarker>>> stale = New.hashMap();
+	private final Set<IMarker> seen = New.hashSet();
+
+	private int created = 0;
+	private int updated = 0;
+	private int deleted = 0;
+
+	public MarkerBatch(String markerType, String... identity) {
+		this.markerType = markerType;
+		this.identity = identity;
+	}
+
+	/** Removes all my markers on and below the resource. */
+	public void clear(IResource res) {
+		clear(res, Collections.<String, Object> emptyMap());
+	}
+
+	/**
+	 * Removes my markers on and below the resource which have all of the given
+	 * attribute values.
+	 */
+	public void clear(IResource res, Map<String, Object> matching) {
+		listFor(cleared, res).add(matching);
+	}
+
+	public void add(IResource res, Map<String, Object> attributes) {
+		listFor(added, res).add(attributes);
+	}
+
+	public IMarker[] find(IResource res, Map<String, Object> matching) throws CoreException {
+		final Collection<IMarker> found = New.linkedList();
+		for (IMarker marker : res.findMarkers(markerType, false, IResource.DEPTH_INFINITE))
+			if (matches(marker, matching))
+				found.add(marker);
+		return found.toArray(new IMarker[found.size()]);
+	}
+
+	/** Writes the batch in a single workspace operation. */
+	public void flush(IResource rule, IProgressMonitor monitor) throws CoreException {
+		if (cleared.isEmpty() && added.isEmpty() && stale.isEmpty())
+			return;
+		ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+			@Override public void run(IProgressMonitor monitor) throws CoreException {
+				write();
+			}
+		}, rule, IWorkspace.AVOID_UPDATE, monitor);
+	}
+
+	/**
+	 * Writes the markers added so far in a single workspace operation, but
+	 * keeps stale markers around for later adds.
+	 */
+	public void flushAdded(IResource rule, IProgressMonitor monitor) throws CoreException {
+		if (added.isEmpty())
+			return;
+		ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+			@Override public void run(IProgressMonitor monitor) throws CoreException {
+				writeAdded();
+			}
+		}, rule, IWorkspace.AVOID_UPDATE, monitor);
+	}
+
+	/** Writes the batch directly; use when already running in a workspace operation. */
+	public void write() throws CoreException {
+		writeAdded();
+
+		final Collection<IMarker> obsolete = New.linkedList();
+		for (Map<String, Collection<IMarker>> byIdentity : stale.values())
+			for (Collection<IMarker> markers : byIdentity.values())
+				obsolete.addAll(markers);
+		if (!obsolete.isEmpty())
+			ResourcesPlugin.getWorkspace().deleteMarkers(obsolete.toArray(new IMarker[obsolete.size()]));
+		deleted += obsolete.size();
+		stale.clear();
+		seen.clear();
+	}
+
+	private void writeAdded() throws CoreException {
+		collectStale();
+		for (Map.Entry<IResource, Collection<Map<String, Object>>> e : added.entrySet()) {
+			final IResource res = e.getKey();
+			if (!res.exists())
+				continue;
+			final Map<String, Collection<IMarker>> existing = stale.get(res);
+			for (Map<String, Object> attributes : e.getValue()) {
+				final IMarker same = (null == existing) ? null : takeFrom(existing, identityOf(attributes));
+				if (null == same) {
+					res.createMarker(markerType).setAttributes(attributes);
+					created++;
+				} else if (!attributes.equals(same.getAttributes())) {
+					same.setAttributes(attributes);
+					updated++;
+				}
+			}
+		}
+		added.clear();
+	}
+
+	/** Number of markers created so far. */
+	public int created() {
+		return created;
+	}
+
+	/** Number of existing markers whose attributes were changed so far. */
+	public int updated() {
+		return updated;
+	}
+
+	/** Number of markers deleted so far. */
+	public int deleted() {
+		return deleted;
+	}
+
+	private void collectStale() throws CoreException {
+		for (Map.Entry<IResource, Collection<Map<String, Object>>> e : cleared.entrySet()) {
+			final IResource res = e.getKey();
+			if (!res.exists())
+				continue;
+			final Map<List<String>, Set<String>> filters = filtersOf(e.getValue());
+			for (IMarker marker : res.findMarkers(markerType, false, IResource.DEPTH_INFINITE))
+				if (matchesAny(marker, filters) && seen.add(marker))
+					listFor(mapFor(stale, marker.getResource()), identityOf(marker.getAttributes(identity)))
+							.add(marker);
+		}
+		cleared.clear();
+	}
+
+	/**
+	 * Groups the filters by the attributes they look at, so a marker is
+	 * matched against all of them with one lookup per group. The values are
+	 * joined like identities.
+	 */
+	private Map<List<String>, Set<String>> filtersOf(Collection<Map<String, Object>> matchings) {
+		final Map<List<String>, Set<String>> filters = New.hashMap();
+		for (Map<String, Object> matching : matchings) {
+			final String[] names = matching.keySet().toArray(new String[matching.size()]);
+			Arrays.sort(names);
+			final Object[] values = new Object[names.length];
+			for (int i = 0; i < names.length; i++)
+				values[i] = matching.get(names[i]);
+			final List<String> key = Arrays.asList(names);
+			Set<String> matchingValues = filters.get(key);
+			if (null == matchingValues) {
+				matchingValues = New.hashSet();
+				filters.put(key, matchingValues);
+			}
+			matchingValues.add(identityOf(values));
+		}
+		return filters;
+	}
+
+	private boolean matchesAny(IMarker marker, Map<List<String>, Set<String>> filters) throws CoreException {
+		for (Map.Entry<List<String>, Set<String>> e : filters.entrySet()) {
+			final List<String> names = e.getKey();
+			if (e.getValue().contains(identityOf(marker.getAttributes(names.toArray(new String[names.size()])))))
+				return true;
+		}
+		return false;
+	}
+
+	private String identityOf(Map<String, Object> attributes) {
+		final Object[] values = new Object[identity.length];
+		for (int i = 0; i < identity.length; i++)
+			values[i] = attributes.get(identity[i]);
+		return identityOf(values);
+	}
+
+	private String identityOf(Object[] values) {
+		final StringBuilder b = new StringBuilder();
+		for (Object value : values)
+			b.append(value).append('\0');
+		return b.toString();
+	}
+
+	private IMarker takeFrom(Map<String, Collection<IMarker>> markers, String identity) {
+		final Collection<IMarker> candidates = markers.get(identity);
+		if (null == candidates || candidates.isEmpty())
+			return null;
+		final Iterator<IMarker> first = candidates.iterator();
+		final IMarker taken = first.next();
+		first.remove();
+		return taken;
+	}
+
+	private boolean matches(IMarker marker, Map<String, Object> matching) throws CoreException {
+		for (Map.Entry<String, Object> e : matching.entrySet())
+			if (!e.getValue().equals(marker.getAttribute(e.getKey())))
+				return false;
+		return true;
+	}
+
+	private <K, V> Collection<V> listFor(Map<K, Collection<V>> map, K key) {
+		Collection<V> list = map.get(key);
+		if (null == list) {
+			list = New.linkedList();
+			map.put(key, list);
+		}
+		return list;
+	}
+
+	private <K, V> Map<String, V> mapFor(Map<K, Map<String, V>> map, K key) {
+		Map<String, V> found = map.get(key);
+		if (null == found) {
+			found = New.hashMap();
+			map.put(key, found);
+		}
+		return found;
+	}
+
+}
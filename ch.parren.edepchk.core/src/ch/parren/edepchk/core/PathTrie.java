@@ -0,0 +1,102 @@
+package ch.parren.edepchk.core;
+
+import java.util.Collection;
+import java.util.Map;
+
+import ch.parren.java.lang.New;
+
+/**
+ * Values by project-relative folder path, stored by path segment so finding
+ * the values of a path, or of its longest prefix having a given value, takes
+ * time proportional to the path's depth rather than to the number of paths.
+ * Paths use '/' as separator; a trailing separator is ignored.
+ */
+final class PathTrie<T> {
+
+	private final Map<String, PathTrie<T>> children = New.hashMap();
+	private final Collection<T> values = New.linkedList();
+
+	/** Adds the value for the path. Values keep the order they were added in. */
+	public void add(String path, T value) {
+		PathTrie<T> node = this;
+		int start = 0;
+		while (start < path.length()) {
+			final int end = endOfSegment(path, start);
+			final String segment = path.substring(start, end);
+			PathTrie<T> child = node.children.get(segment);
+			if (null == child) {
+				child = new PathTrie<T>();
+				node.children.put(segment, child);
+			}
+			node = child;
+			start = end + 1;
+		}
+		if (!node.values.contains(value))
+			node.values.add(value);
+	}
+
+	/** The first value added for exactly this path, or null. */
+	public T firstAt(String path) {
+		final PathTrie<T> node = nodeAt(path);
+		return (null == node || node.values.isEmpty()) ? null : node.values.iterator().next();
+	}
+
+	/** Whether paths were added below this one. */
+	public boolean hasPathsBelow(String path) {
+		final PathTrie<T> node = nodeAt(path);
+		return null != node && !node.children.isEmpty();
+	}
+
+	/** Whether paths were added above this one, that is, for its parents. */
+	public boolean hasPathsAbove(String path) {
+		PathTrie<T> node = this;
+		int start = 0;
+		while (start < path.length()) {
+			if (node != this && !node.values.isEmpty())
+				return true;
+			final int end = endOfSegment(path, start);
+			node = node.children.get(path.substring(start, end));
+			if (null == node)
+				return false;
+			start = end + 1;
+		}
+		return false;
+	}
+
+	/**
+	 * The longest prefix of the path, ending in a separator, for which the
+	 * value was added, or null if there is none.
+	 */
+	public String longestPrefixWith(String path, T value) {
+		PathTrie<T> node = this;
+		int found = -1;
+		int start = 0;
+		while (start < path.length()) {
+			final int end = endOfSegment(path, start);
+			node = node.children.get(path.substring(start, end));
+			if (null == node)
+				break;
+			if (node.values.contains(value))
+				found = end;
+			start = end + 1;
+		}
+		return (found < 0) ? null : path.substring(0, found) + '/';
+	}
+
+	private PathTrie<T> nodeAt(String path) {
+		PathTrie<T> node = this;
+		int start = 0;
+		while (null != node && start < path.length()) {
+			final int end = endOfSegment(path, start);
+			node = node.children.get(path.substring(start, end));
+			start = end + 1;
+		}
+		return node;
+	}
+
+	private static int endOfSegment(String path, int start) {
+		final int end = path.indexOf('/', start);
+		return (end < 0) ? path.length() : end;
+	}
+
+}
@@ -0,0 +1,48 @@
+package ch.parren.edepchk.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.core.ElementChangedEvent;
+import org.eclipse.jdt.core.IElementChangedListener;
+import org.eclipse.jdt.core.IJavaProject;
+import org.eclipse.jdt.core.IType;
+import org.eclipse.jdt.core.JavaModelException;
+
+/**
+ * Remembers the results of {@link IJavaProject#findType(String)}, including
+ * types that were not found, as the same few target types tend to be looked up
+ * for thousands of violations. Any change to the Java model flushes the cache.
+ */
+final class TypeCache implements IElementChangedListener {
+
+	private static final int MAX_ENTRIES = 10000;
+
+	private final Map<String, IType> types = new LinkedHashMap<String, IType>(256, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override protected boolean removeEldestEntry(Map.Entry<String, IType> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+
+	public IType findType(IJavaProject javaProject, String className) throws JavaModelException {
+		final String key = javaProject.getElementName() + '/' + className;
+		synchronized (types) {
+			if (types.containsKey(key))
+				return types.get(key);
+		}
+		final IType found = javaProject.findType(className);
+		synchronized (types) {
+			types.put(key, found);
+		}
+		return found;
+	}
+
+	@Override public void elementChanged(ElementChangedEvent event) {
+		synchronized (types) {
+			types.clear();
+		}
+	}
+
+}
@@ -0,0 +1,201 @@
+package ch.parren.edepchk.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ch.parren.java.lang.New;
+
+/**
+ * The violations and references of each class of a scope, by the hash of its
+ * class file, for the rules last checked against. Lets us skip parsing classes
+ * whose bytes did not change. Thread-safe, as scopes may be scanned on
+ * multiple threads.
+ * <p>
+ * Saved with all strings in a table up front, so the many repeated class and
+ * rule set names are only written once, and indexes as variable-length ints.
+ */
+final class ViolationCache {
+
+	/** Bump this whenever the file format changes. */
+	private static final int VERSION = 1;
+
+	static final class Entry {
+
+		final long hash;
+		final Collection<ViolationRecord> violations;
+		final Collection<String> references;
+
+		public Entry(long hash, Collection<ViolationRecord> violations, Collection<String> references) {
+			this.hash = hash;
+			this.violations = violations;
+			this.references = references;
+		}
+	}
+
+	private final Map<String, Entry> entries = New.hashMap();
+	private long rulesFingerPrint = 0;
+	private boolean dirty = false;
+
+	/** Drops all entries unless they were made using the same rules. */
+	public synchronized void useRules(long fingerPrint) {
+		if (fingerPrint == rulesFingerPrint)
+			return;
+		entries.clear();
+		rulesFingerPrint = fingerPrint;
+		dirty = true;
+	}
+
+	/** The cached entry of the class, or null if there is none for these bytes. */
+	public synchronized Entry get(String className, long hash) {
+		final Entry entry = entries.get(className);
+		return (null != entry && entry.hash == hash) ? entry : null;
+	}
+
+	public synchronized void put(String className, long hash, Collection<ViolationRecord> violations,
+			Collection<String> references) {
+		entries.put(className, new Entry(hash, violations, references));
+		dirty = true;
+	}
+
+	public synchronized void remove(String className) {
+		dirty |= null != entries.remove(className);
+	}
+
+	/** Drops the entries of classes no longer around after a full check. */
+	public synchronized void retainAll(Collection<String> classNames) {
+		dirty |= entries.keySet().retainAll(classNames);
+	}
+
+	/** Loads a saved cache, or leaves me empty if it is missing or unreadable. */
+	public synchronized void load(File file) {
+		if (!file.exists())
+			return;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (VERSION != in.readInt())
+					return;
+				rulesFingerPrint = in.readLong();
+				final String[] strings = new String[readInt(in) + 1]; // 0 is null
+				for (int i = 1; i < strings.length; i++)
+					strings[i] = in.readUTF();
+				final int nEntries = readInt(in);
+				for (int i = 0; i < nEntries; i++) {
+					final String className = strings[readInt(in)];
+					final long hash = in.readLong();
+					final int nViolations = readInt(in);
+					final Collection<ViolationRecord> violations = new ArrayList<ViolationRecord>(nViolations);
+					for (int j = 0; j < nViolations; j++)
+						violations.add(new ViolationRecord(className, strings[readInt(in)], strings[readInt(in)],
+								strings[readInt(in)], strings[readInt(in)], strings[readInt(in)]));
+					final int nRefs = readInt(in);
+					final Collection<String> refs = new ArrayList<String>(nRefs);
+					for (int j = 0; j < nRefs; j++)
+						refs.add(strings[readInt(in)]);
+					entries.put(className, new Entry(hash, violations, refs));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			entries.clear();
+			rulesFingerPrint = 0;
+		} catch (ArrayIndexOutOfBoundsException e) {
+			entries.clear();
+			rulesFingerPrint = 0;
+		}
+		dirty = false;
+	}
+
+	/** Saves the cache if it changed since it was loaded or last saved. */
+	public synchronized void save(File file) {
+		if (!dirty)
+			return;
+		final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		for (Map.Entry<String, Entry> e : entries.entrySet()) {
+			indexOf(strings, e.getKey());
+			for (ViolationRecord v : e.getValue().violations) {
+				indexOf(strings, v.toClassName);
+				indexOf(strings, v.toElementName);
+				indexOf(strings, v.toElementDesc);
+				indexOf(strings, v.scopeName);
+				indexOf(strings, v.ruleSetName);
+			}
+			for (String ref : e.getValue().references)
+				indexOf(strings, ref);
+		}
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(VERSION);
+				out.writeLong(rulesFingerPrint);
+				writeInt(out, strings.size());
+				for (String s : strings.keySet())
+					out.writeUTF(s);
+				writeInt(out, entries.size());
+				for (Map.Entry<String, Entry> e : entries.entrySet()) {
+					final Entry entry = e.getValue();
+					writeInt(out, indexOf(strings, e.getKey()));
+					out.writeLong(entry.hash);
+					writeInt(out, entry.violations.size());
+					for (ViolationRecord v : entry.violations) {
+						writeInt(out, indexOf(strings, v.toClassName));
+						writeInt(out, indexOf(strings, v.toElementName));
+						writeInt(out, indexOf(strings, v.toElementDesc));
+						writeInt(out, indexOf(strings, v.scopeName));
+						writeInt(out, indexOf(strings, v.ruleSetName));
+					}
+					writeInt(out, entry.references.size());
+					for (String ref : entry.references)
+						writeInt(out, indexOf(strings, ref));
+				}
+			} finally {
+				out.close();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			file.delete();
+		}
+	}
+
+	/** Index of the string in the table, adding it if new. Null is 0. */
+	private int indexOf(Map<String, Integer> strings, String s) {
+		if (null == s)
+			return 0;
+		final Integer found = strings.get(s);
+		if (null != found)
+			return found;
+		final int index = strings.size() + 1;
+		strings.put(s, index);
+		return index;
+	}
+
+	private static void writeInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readInt(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			final int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+	}
+
+}
@@ -0,0 +1,34 @@
+package ch.parren.edepchk.core;
+
+import ch.parren.jdepchk.check.Violation;
+
+/**
+ * What we need to know about a JDepChk {@link Violation} to place and describe
+ * its marker. Unlike violations, records do not reference the rules, so they
+ * can be cached across builds.
+ */
+final class ViolationRecord {
+
+	final String fromClassName;
+	final String toClassName;
+	final String toElementName;
+	final String toElementDesc;
+	final String scopeName;
+	final String ruleSetName;
+
+	public ViolationRecord(String fromClassName, String toClassName, String toElementName, String toElementDesc,
+			String scopeName, String ruleSetName) {
+		this.fromClassName = fromClassName;
+		this.toClassName = toClassName;
+		this.toElementName = toElementName;
+		this.toElementDesc = toElementDesc;
+		this.scopeName = scopeName;
+		this.ruleSetName = ruleSetName;
+	}
+
+	public static ViolationRecord of(Violation v) {
+		return new ViolationRecord(v.fromClassName, v.toClassName, v.toElementName, v.toElementDesc, v.scope.name(),
+				v.ruleSet.name());
+	}
+
+}
@@ -0,0 +1,118 @@
+package ch.parren.edepchk.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import ch.parren.java.lang.New;
+
+/**
+ * How many violations of each class of a scope were marked, and how many were
+ * only counted because of the limits on markers. Incremental builds recheck
+ * just some classes, so this is how they count the markers of the others
+ * towards the limits, and know the scope's totals for its summary marker.
+ * Class names are internal names. Thread-safe, as scopes may be scanned on
+ * multiple threads.
+ */
+final class ViolationTally {
+
+	/** Bump this whenever the file format changes. */
+	private static final int VERSION = 1;
+
+	/** Marked and suppressed violations by class. */
+	private final Map<String, int[]> counts = New.hashMap();
+	private boolean dirty = false;
+
+	public synchronized void clear() {
+		dirty |= !counts.isEmpty();
+		counts.clear();
+	}
+
+	/** Forgets the counts of a class about to be rechecked, or removed. */
+	public synchronized void remove(String className) {
+		dirty |= null != counts.remove(className);
+	}
+
+	/** Counts a violation of the class as marked or suppressed. */
+	public synchronized void count(String className, boolean marked) {
+		int[] found = counts.get(className);
+		if (null == found) {
+			found = new int[2];
+			counts.put(className, found);
+		}
+		found[marked ? 0 : 1]++;
+		dirty = true;
+	}
+
+	/** The marked, and suppressed violations of all classes. */
+	public synchronized int[] totals() {
+		final int[] totals = new int[2];
+		for (int[] found : counts.values()) {
+			totals[0] += found[0];
+			totals[1] += found[1];
+		}
+		return totals;
+	}
+
+	/** The marked violations by class, for classes having any. */
+	public synchronized Map<String, Integer> markedByClass() {
+		final Map<String, Integer> marked = New.hashMap();
+		for (Map.Entry<String, int[]> e : counts.entrySet())
+			if (0 < e.getValue()[0])
+				marked.put(e.getKey(), e.getValue()[0]);
+		return marked;
+	}
+
+	/** Loads a saved tally, or leaves me empty if it is missing or unreadable. */
+	public synchronized void load(File file) {
+		if (!file.exists())
+			return;
+		try {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if (VERSION != in.readInt())
+					return;
+				final int nClasses = in.readInt();
+				for (int i = 0; i < nClasses; i++) {
+					final String className = in.readUTF();
+					counts.put(className, new int[] { in.readInt(), in.readInt() });
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			counts.clear();
+		}
+		dirty = false;
+	}
+
+	/** Saves the tally if it changed since it was loaded or last saved. */
+	public synchronized void save(File file) {
+		if (!dirty)
+			return;
+		try {
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(VERSION);
+				out.writeInt(counts.size());
+				for (Map.Entry<String, int[]> e : counts.entrySet()) {
+					out.writeUTF(e.getKey());
+					out.writeInt(e.getValue()[0]);
+					out.writeInt(e.getValue()[1]);
+				}
+			} finally {
+				out.close();
+			}
+			dirty = false;
+		} catch (IOException e) {
+			file.delete();
+		}
+	}
+
+}